@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Checks that a FrozenNgram can be shared by many query threads: every
+ * thread must get the same answers as a single-threaded run (which must
+ * match the model the snapshot was taken of, up to NgramBenchmark's
+ * TOLERANCE, since the snapshot's trie is rebuilt), and total query throughput
+ * should grow with the number of threads (up to the number of cores). The
+ * run exits with status 1 if any answers differ.
+ *
+ * Usage: java -cp target/benchmarks.jar ConcurrentQueryBenchmark [sentences [vocab [n]]]
+ */
+public class ConcurrentQueryBenchmark
+{
+    public static final int QUERIES_PER_THREAD = 2000000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int sentences = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int vocabSize = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Ngram trained = new Ngram(NgramBenchmark.zipfCorpus(sentences, vocabSize, 1), n);
+        trained.train();
+        trained.freeze();
+        final FrozenNgram model = trained.snapshot();
+
+        // Test n-grams as word ids, scored once up front for comparison
+        ArrayList<int[]> ngrams = new ArrayList<int[]>();
+        for (String sentence : NgramBenchmark.zipfCorpus(sentences / 10, vocabSize, 2)) {
+            int[] window = new int[n];
+            for (int word : trained.vocab.lookupAll(sentence)) {
+                System.arraycopy(window, 1, window, 0, n-1);
+                window[n-1] = word;
+                ngrams.add(window.clone());
+            }
+        }
+        final int[][] queries = ngrams.toArray(new int[ngrams.size()][]);
+        for (int[] query : queries) {
+            double original = trained.goodTuringSmoothedProbability(query);
+            double snapshot = model.goodTuringSmoothedProbability(query);
+            if (!NgramBenchmark.same(original, snapshot)) {
+                System.out.println("MISMATCH: the snapshot gave " + snapshot + " where the model gave " + original);
+                System.exit(1);
+            }
+        }
+        double expected = sumProbabilities(model, queries, QUERIES_PER_THREAD);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(cores + " cores");
+        System.out.println(String.format("%7s %14s %8s", "threads", "queries/s", "speedup"));
+        double single = 0;
+        for (int threads = 1; threads <= Math.max(8, cores); threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                // Warm up, then time
+                long start = 0;
+                for (int round = 0; round < 2; round++) {
+                    start = System.nanoTime();
+                    double answer = run(pool, threads, model, queries, expected);
+                    if (Double.compare(answer, expected) != 0) {
+                        System.out.println("MISMATCH: " + threads + " threads gave " + answer + ", expected " + expected);
+                        System.exit(1);
+                    }
+                }
+                double rate = (double) threads * QUERIES_PER_THREAD / ((System.nanoTime() - start) / 1e9);
+                if (threads == 1) {
+                    single = rate;
+                }
+                System.out.println(String.format("%7d %14.0f %8.2f", threads, rate, rate / single));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Returns expected if every thread's sum matched it, else the first that didn't
+    private static double run(ExecutorService pool, int threads, final FrozenNgram model,
+                              final int[][] queries, double expected) throws Exception
+    {
+        ArrayList<Future<Double>> results = new ArrayList<Future<Double>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(new Callable<Double>() {
+                public Double call()
+                {
+                    return sumProbabilities(model, queries, QUERIES_PER_THREAD);
+                }
+            }));
+        }
+        double answer = expected;
+        for (Future<Double> result : results) {
+            if (Double.compare(result.get(), expected) != 0 && Double.compare(answer, expected) == 0) {
+                answer = result.get();
+            }
+        }
+        return answer;
+    }
+
+    private static double sumProbabilities(FrozenNgram model, int[][] queries, int count)
+    {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += model.goodTuringSmoothedProbability(queries[i % queries.length]);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/*
+ * The models and synthetic Zipfian corpora the JMH benchmarks in jmh/ run on
+ * (see jmh.ModelBenchmark), and a report of the heap each trained model
+ * retains, which JMH doesn't measure. Corpora are generated from a fixed
+ * seed, so runs on the same machine are comparable.
+ *
+ * Models that make the same estimate are also checked against each other
+ * on every corpus: Unigram against Ngram with n = 1, Bigram against n = 2,
+ * and each order on the TRIE store against PACKED. They must give the same
+ * perplexity and the same probability for every sampled query (up to
+ * TOLERANCE), or the run exits with status 1, so a faster implementation
+ * can't quietly change the answers.
+ *
+ * Usage: mvn -Pjmh package
+ *        java -cp target/benchmarks.jar NgramBenchmark [sentences,... [vocab,...]]
+ */
+public class NgramBenchmark implements jmh.Workload
+{
+    public static final double ZIPF_EXPONENT = 1.0;
+    public static final String[] MODELS = {"unigram", "bigram", "ngram2", "ngram3", "ngram4", "ngram5"};
+    public static final int CHECKED_QUERIES = 100000; // Sampled queries compared per pair of models
+    public static final double TOLERANCE = 1e-12; // Relative difference allowed: stores sum the same counts in different orders
+
+    public static void main(String[] args)
+    {
+        int[] sizes = args.length > 0 ? parseInts(args[0]) : new int[] {10000, 100000};
+        int[] vocabs = args.length > 1 ? parseInts(args[1]) : new int[] {1000, 50000};
+
+        NgramBenchmark workload = new NgramBenchmark();
+        System.out.println(String.format("%-12s %9s %7s %9s", "model", "sentences", "vocab", "heap MB"));
+        int mismatches = 0;
+        for (int size : sizes) {
+            for (int vocab : vocabs) {
+                ArrayList<String> train = zipfCorpus(size, vocab, 1);
+                for (String name : MODELS) {
+                    long before = usedHeap();
+                    Model model = workload.create(name, train);
+                    model.train();
+                    model.freeze();
+                    double heap = (usedHeap() - before) / (1024.0 * 1024.0);
+                    System.out.println(String.format("%-12s %9d %7d %9.1f", name, size, vocab, heap));
+                }
+
+                ArrayList<String> test = zipfCorpus(Math.max(size / 10, 1), vocab, 2);
+                mismatches += check("unigram", workload.create("unigram", train),
+                                    "ngram1", workload.create("ngram1", train), test);
+                mismatches += check("bigram", workload.create("bigram", train),
+                                    "ngram2", workload.create("ngram2", train), test);
+                for (int order = 1; order <= 5; order++) {
+                    mismatches += check("ngram" + order + " trie", ngram(train, order, NgramStore.Type.TRIE),
+                                        "ngram" + order + " packed", ngram(train, order, NgramStore.Type.PACKED), test);
+                }
+            }
+        }
+        if (mismatches > 0) {
+            System.out.println(mismatches + " pairs of models disagree");
+            System.exit(1);
+        }
+    }
+
+    // Trains both models and returns 0 if they give the same perplexity of
+    // test and the same probability for each query sampled from it, 1 (after
+    // printing the first difference) otherwise
+    private static int check(String name1, Model model1, String name2, Model model2, ArrayList<String> test)
+    {
+        model1.train();
+        model1.freeze();
+        model2.train();
+        model2.freeze();
+        double perplexity1 = model1.perplexity(test);
+        double perplexity2 = model2.perplexity(test);
+        if (!same(perplexity1, perplexity2)) {
+            System.out.println("MISMATCH " + name1 + " vs " + name2 + ": perplexity " + perplexity1 + " vs " + perplexity2);
+            return 1;
+        }
+        // Both sample the same n-grams of test, each with its own word ids
+        int[][] queries1 = model1.queries(test, CHECKED_QUERIES);
+        int[][] queries2 = model2.queries(test, CHECKED_QUERIES);
+        for (int i = 0; i < CHECKED_QUERIES; i++) {
+            double probability1 = model1.query(queries1[i]);
+            double probability2 = model2.query(queries2[i]);
+            if (!same(probability1, probability2)) {
+                System.out.println("MISMATCH " + name1 + " vs " + name2 + ": query " + i + " gave " +
+                                   probability1 + " vs " + probability2);
+                return 1;
+            }
+        }
+        System.out.println("ok " + name1 + " = " + name2);
+        return 0;
+    }
+
+    // Whether two probabilities agree up to TOLERANCE (NaN agrees with NaN)
+    static boolean same(double a, double b)
+    {
+        return Double.compare(a, b) == 0 || Math.abs(a - b) <= TOLERANCE * Math.max(Math.abs(a), Math.abs(b));
+    }
+
+    private static int[] parseInts(String list)
+    {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public ArrayList<String> corpus(int sentences, int vocab, long seed)
+    {
+        return zipfCorpus(sentences, vocab, seed);
+    }
+
+    // Sentences of 5 to 30 words drawn from a Zipf distribution over vocab
+    // words, each ending in a period
+    public static ArrayList<String> zipfCorpus(int sentences, int vocab, long seed)
+    {
+        int[] words = new int[vocab];
+        double[] weights = new double[vocab];
+        for (int rank = 0; rank < vocab; rank++) {
+            words[rank] = rank;
+            weights[rank] = 1.0 / Math.pow(rank + 1, ZIPF_EXPONENT);
+        }
+        AliasSampler zipf = new AliasSampler(words, weights);
+        SplittableRandom random = new SplittableRandom(seed);
+
+        ArrayList<String> corpus = new ArrayList<String>(sentences);
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            sentence.setLength(0);
+            int length = 5 + random.nextInt(26);
+            for (int j = 0; j < length; j++) {
+                sentence.append('w').append(zipf.sample(random)).append(' ');
+            }
+            sentence.append('.');
+            corpus.add(sentence.toString());
+        }
+        return corpus;
+    }
+
+    public Model create(String name, ArrayList<String> train)
+    {
+        if (name.equals("unigram")) {
+            final Unigram u = new Unigram(train);
+            return new Model() {
+                public void train() { u.train(); }
+                public void freeze() { u.freeze(); }
+                public double query(int[] ngram) { return u.goodTuringSmoothedProbability(ngram[0]); }
+                public double perplexity(Iterable<String> testSamples) { return u.evaluate(testSamples).perplexity(); }
+                public String getSentence(SplittableRandom random) { return u.getSentence(random); }
+                public int[][] queries(ArrayList<String> test, int count) { return sample(u.vocab, 1, test, count); }
+            };
+        }
+        if (name.equals("bigram")) {
+            final Bigram b = new Bigram(train);
+            return new Model() {
+                public void train() { b.train(); }
+                public void freeze() { b.freeze(); }
+                public double query(int[] ngram) { return b.goodTuringSmoothedProbability(ngram[0], ngram[1]); }
+                public double perplexity(Iterable<String> testSamples) { return b.evaluate(testSamples).perplexity(); }
+                public String getSentence(SplittableRandom random) { return b.getSentence(random); }
+                public int[][] queries(ArrayList<String> test, int count) { return sample(b.vocab, 2, test, count); }
+            };
+        }
+        if (!name.startsWith("ngram")) {
+            throw new IllegalArgumentException("No model called " + name);
+        }
+        return ngram(train, Integer.parseInt(name.substring("ngram".length())), NgramStore.Type.TRIE);
+    }
+
+    // An untrained Ngram of the given order on the given store
+    private static Model ngram(ArrayList<String> train, int order, NgramStore.Type storeType)
+    {
+        final Ngram n = new Ngram(train, order, new Vocabulary(), storeType);
+        return new Model() {
+            public void train() { n.train(); }
+            public void freeze() { n.freeze(); }
+            public double query(int[] ngram) { return n.goodTuringSmoothedProbability(ngram); }
+            public double perplexity(Iterable<String> testSamples) { return n.evaluate(testSamples).perplexity(); }
+            public String getSentence(SplittableRandom random) { return n.getSentence(random); }
+            public int[][] queries(ArrayList<String> test, int count) { return sample(n.vocab, n.n, test, count); }
+        };
+    }
+
+    // count n-grams taken at random from the test set, with word ids from vocab
+    private static int[][] sample(Vocabulary vocab, int n, ArrayList<String> test, int count)
+    {
+        ArrayList<int[]> ngrams = new ArrayList<int[]>();
+        for (String sentence : test) {
+            int[] words = vocab.lookupAll(sentence);
+            int[] window = new int[n];
+            for (int word : words) {
+                System.arraycopy(window, 1, window, 0, n-1);
+                window[n-1] = word;
+                ngrams.add(window.clone());
+            }
+        }
+        Random random = new Random(3);
+        int[][] queries = new int[count][];
+        for (int i = 0; i < count; i++) {
+            queries[i] = ngrams.get(random.nextInt(ngrams.size()));
+        }
+        return queries;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
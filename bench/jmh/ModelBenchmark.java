@@ -0,0 +1,92 @@
+package jmh;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Measures the models on synthetic Zipfian corpora so performance can be
+ * compared between releases:
+ *
+ *   train    training and freezing a model on the whole corpus (ms)
+ *   query    one good-turing probability lookup (ns)
+ *   ppl      evaluating the perplexity of the test corpus (ms)
+ *   generate generating one sentence (us)
+ *
+ * Every case runs for each corpus size, vocabulary size and model in the
+ * @Params below; pick some with -p. Corpora are generated from a fixed seed,
+ * so runs on the same machine are comparable.
+ *
+ * Usage: mvn -Pjmh package
+ *        java -jar target/benchmarks.jar ModelBenchmark [-p sentences=10000 -p vocab=1000 -p model=ngram3]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ModelBenchmark
+{
+    public static final int QUERIES = 1 << 18; // A power of two, so query() can wrap with a mask
+
+    @Param({"10000", "100000"})
+    public int sentences;
+    @Param({"1000", "50000"})
+    public int vocab;
+    @Param({"unigram", "bigram", "ngram2", "ngram3", "ngram4", "ngram5"})
+    public String model;
+
+    private Workload workload;
+    private ArrayList<String> train;
+    private ArrayList<String> test;
+    private Workload.Model trained; // Trained and frozen once per trial, for all but train()
+    private int[][] queries;
+    private int nextQuery;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        workload = (Workload) Class.forName("NgramBenchmark").getDeclaredConstructor().newInstance();
+        train = workload.corpus(sentences, vocab, 1);
+        test = workload.corpus(Math.max(sentences / 10, 1), vocab, 2);
+        trained = workload.create(model, train);
+        trained.train();
+        trained.freeze();
+        queries = trained.queries(test, QUERIES);
+        nextQuery = 0;
+        random = new SplittableRandom(3);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Workload.Model train()
+    {
+        Workload.Model fresh = workload.create(model, train);
+        fresh.train();
+        fresh.freeze();
+        return fresh;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double query()
+    {
+        return trained.query(queries[nextQuery++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double ppl()
+    {
+        return trained.perplexity(test);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String generate()
+    {
+        return trained.getSentence(random);
+    }
+}
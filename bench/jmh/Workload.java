@@ -0,0 +1,31 @@
+package jmh;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+/*
+ * What the benchmarks need from the models. JMH only generates benchmarks
+ * for classes in a package, and those can't name classes in the default
+ * package, so the benchmarks reach the models through these interfaces,
+ * implemented by NgramBenchmark and loaded by name.
+ */
+public interface Workload
+{
+    // Sentences of 5 to 30 words drawn from a Zipf distribution over vocab words
+    public ArrayList<String> corpus(int sentences, int vocab, long seed);
+
+    // An untrained unigram, bigram or ngramN model of train
+    public Model create(String name, ArrayList<String> train);
+
+    // What every model offers, so the measurements can be written once
+    public interface Model
+    {
+        public void train();
+        public void freeze();
+        public double query(int[] ngram);
+        public double perplexity(Iterable<String> testSamples);
+        public String getSentence(SplittableRandom random);
+        // count n-grams of the model's order taken at random from test, as word ids
+        public int[][] queries(ArrayList<String> test, int count);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.SplittableRandom;
+
+/*
+ * Draws word ids in proportion to their counts in O(1) per draw, using
+ * Walker's alias method (Vose's construction).
+ *
+ * The k words are laid out as k equal-width columns. Column i keeps its own
+ * word with probability keep[i] and otherwise yields alias[i]; building the
+ * table is O(k), after which a draw is one random column and one coin flip
+ * no matter how many words follow the context.
+ */
+public class AliasSampler
+{
+    private final int[] words; // Word id of each column
+    private final double[] keep; // Chance that column i yields words[i]
+    private final int[] alias; // Column whose word i yields otherwise
+
+    // weights[i] is the (unnormalized) weight of words[i]
+    public AliasSampler(int[] words, double[] weights)
+    {
+        int k = words.length;
+        this.words = words;
+        this.keep = new double[k];
+        this.alias = new int[k];
+
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+
+        // Scale so the average column is 1, then split into under- and overfull
+        int[] small = new int[k];
+        int[] large = new int[k];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < k; i++) {
+            keep[i] = weights[i] * k / total;
+            if (keep[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+
+        // Top up each underfull column from an overfull one
+        while (numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[numLarge-1];
+            alias[less] = more;
+            keep[more] -= 1.0 - keep[less];
+            if (keep[more] < 1.0) {
+                numLarge--;
+                small[numSmall++] = more;
+            }
+        }
+        // Whatever is left is full up to rounding error
+        while (numLarge > 0) {
+            keep[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            keep[small[--numSmall]] = 1.0;
+        }
+    }
+
+    public int sample(SplittableRandom random)
+    {
+        int column = random.nextInt(words.length);
+        return random.nextDouble() < keep[column] ? words[column] : words[alias[column]];
+    }
+
+    // Rough heap bytes held by the sampler
+    public long bytes()
+    {
+        return 24 + ModelMetrics.arrayBytes(words.length, 4) + ModelMetrics.arrayBytes(keep.length, 8) +
+               ModelMetrics.arrayBytes(alias.length, 4);
+    }
+
+    // Number of distinct words that can be drawn
+    public int size()
+    {
+        return words.length;
+    }
+}
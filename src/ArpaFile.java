@@ -0,0 +1,499 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads backoff language models in the ARPA text format, the one SRILM,
+ * KenLM, IRSTLM and most other LM tools read and write, into a
+ * BackoffModel (BackoffModel.writeArpa writes them):
+ *
+ *   \data\
+ *   ngram 1=<number of 1-grams>
+ *   ...
+ *   \1-grams:
+ *   <log10 P(w)>  w  [<log10 backoff(w)>]
+ *   ...
+ *   \2-grams:
+ *   <log10 P(w2 | w1)>  w1 w2  [<log10 backoff(w1 w2)>]
+ *   ...
+ *   \end\
+ *
+ * Files of pre-trained models run to gigabytes, so the reader never makes
+ * a String per line: it fills one byte array from a FileChannel and parses
+ * numbers and words in place. A number is parsed as an exact decimal
+ * mantissa and power of ten, divided once (correctly rounded, so the same
+ * double Double.parseDouble gives) when both fit in a double, as they do
+ * for the few digits ARPA files are written with; only other numbers go
+ * through Double.parseDouble. The trie is sized from the \data\ counts
+ * before the first entry is read, so nothing is rehashed or grown while
+ * loading.
+ *
+ * Looking a word up in the Vocabulary goes from its table to the word's
+ * String and its chars, each a likely cache miss once the vocabulary is
+ * large, and the higher orders repeat the words tens of millions of times.
+ * So, as KenLM does, each word's id is also kept in a table of its own
+ * keyed by a 64-bit hash of its bytes (hash and id side by side in one
+ * long array), found without comparing any chars. The unigrams, which list
+ * every word, are still checked against the Vocabulary, which catches the
+ * vanishingly unlikely words that share a hash.
+ *
+ * <s> is read as START and <unk> as the probability of unknown words.
+ */
+public class ArpaFile
+{
+    public static final double NO_PROBABILITY = -99; // log10 P ARPA files give k-grams that are only contexts
+    public static final String START = "<s>";
+    public static final String UNKNOWN = "<unk>";
+    public static final int DEFAULT_BUFFER = 1 << 20; // Bytes read from the file at a time
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    }; // Every power of ten a double holds exactly
+    private static final long MAX_EXACT = 1L << 53; // Mantissas a double holds exactly are below this
+
+    private final FileChannel channel;
+    private final String filename;
+    private byte[] buffer;
+    private int position; // Next byte to parse
+    private int limit; // End of the bytes read so far
+    private boolean atEnd; // The whole file has been read into the buffer
+    private int lineStart; // Start of the current line
+    private int lineEnd; // End of the current line (before its newline)
+    private int next; // Start of the next line
+    private long lineNumber;
+    private final StringBuilder chars = new StringBuilder(); // A word being looked up
+    private long[] wordTable; // Pairs of a word's hash (0 for an empty slot) and its id
+    private int numWords; // Words in wordTable
+
+    public static void main(String[] args)
+    {
+        if (args.length != 2 && args.length != 4) {
+            System.out.println("To write an ARPA file, supply 4 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) an integer n > 1\n(3) stupid, katz or kneser-ney\n(4) ARPA file\n" +
+                               "To score with an ARPA file, supply 2 arguments:\n" +
+                               "(1) ARPA file\n(2) Test file, directory or glob");
+            System.exit(1);
+        }
+        try {
+            if (args.length == 4) {
+                Ngram model = new Ngram(new Corpus(args[0], true), Integer.parseInt(args[1]));
+                model.train();
+                model.writeArpa(args[3], BackoffModel.Scheme.valueOf(args[2].toUpperCase().replace('-', '_')));
+                System.out.println("Wrote " + args[3]);
+            } else {
+                long start = System.nanoTime();
+                BackoffModel model = read(args[0]);
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("Read " + model.size() + " trie nodes of order " + model.n + " in " + millis + " ms");
+                Corpus testset = new Corpus(args[1], true);
+                System.out.println(model.evaluate(testset));
+            }
+        } catch (IOException ioe) {
+            System.out.println("IO error!");
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public static BackoffModel read(String filename) throws IOException
+    {
+        return read(filename, new Vocabulary(), DEFAULT_BUFFER);
+    }
+
+    // Reads an ARPA file, adding its words to vocab, bufferSize bytes at a time
+    public static BackoffModel read(String filename, Vocabulary vocab, int bufferSize) throws IOException
+    {
+        FileInputStream in = new FileInputStream(filename);
+        try {
+            return new ArpaFile(in.getChannel(), filename, bufferSize).readModel(vocab);
+        } finally {
+            in.close();
+        }
+    }
+
+    private ArpaFile(FileChannel channel, String filename, int bufferSize)
+    {
+        this.channel = channel;
+        this.filename = filename;
+        this.buffer = new byte[bufferSize];
+    }
+
+    private BackoffModel readModel(Vocabulary vocab) throws IOException
+    {
+        // The header: how many k-grams of each order follow
+        do {
+            if (!nextLine()) {
+                throw error("No \\data\\ section");
+            }
+        } while (!lineIs("\\data\\"));
+        long[] grams = new long[1];
+        int n = 0;
+        while (nextLine() && !isBlank()) {
+            if (!startsWith("ngram ")) {
+                throw error("Expected \"ngram k=number\"");
+            }
+            position += "ngram ".length();
+            int k = (int) parseInteger();
+            if (position == lineEnd || buffer[position] != '=') {
+                throw error("Expected \"ngram k=number\"");
+            }
+            position++;
+            long number = parseInteger();
+            if (k < 1 || k > Byte.MAX_VALUE) {
+                throw error("Bad order " + k);
+            }
+            if (k >= grams.length) {
+                long[] longer = new long[k + 1];
+                System.arraycopy(grams, 0, longer, 0, grams.length);
+                grams = longer;
+            }
+            grams[k] = number;
+            n = Math.max(n, k);
+        }
+        long total = 0;
+        for (long number : grams) {
+            total += number;
+        }
+        if (n == 0 || total >= Integer.MAX_VALUE) {
+            throw error(n == 0 ? "No n-gram counts in \\data\\" : "Too many n-grams to load: " + total);
+        }
+
+        BackoffModel model = new BackoffModel(n, vocab, (int) total);
+        int slots = 1024;
+        while (slots < 2 * grams[1]) {
+            slots *= 2;
+        }
+        wordTable = new long[2 * slots];
+        int[] words = new int[n];
+        for (int k = 1; k <= n; k++) {
+            String section = "\\" + k + "-grams:";
+            do {
+                if (!nextLine()) {
+                    throw error("No " + section + " section");
+                }
+            } while (!lineIs(section));
+            long read = 0;
+            while (nextLine() && !isBlank()) {
+                if (buffer[position] == '\\') {
+                    // The next section, with no blank line before it
+                    unread();
+                    break;
+                }
+                double probability = parseNumber();
+                boolean unknown = false;
+                for (int i = 0; i < k; i++) {
+                    skipSpace();
+                    int start = position;
+                    long hash = 0xCBF29CE484222325L; // FNV-1a
+                    while (position < lineEnd && !isSpace(buffer[position])) {
+                        hash = (hash ^ buffer[position]) * 0x100000001B3L;
+                        position++;
+                    }
+                    if (position == start) {
+                        throw error("Expected " + k + " words");
+                    }
+                    if (k == 1 && equals(start, position, UNKNOWN)) {
+                        unknown = true;
+                    } else if (equals(start, position, START)) {
+                        words[i] = Vocabulary.START;
+                    } else {
+                        words[i] = id(vocab, start, position, hash == 0 ? 1 : hash, k == 1);
+                    }
+                }
+                skipSpace();
+                double weight = position < lineEnd ? parseNumber() : 0.0;
+                if (unknown) {
+                    model.unknownLogProbability = probability * Math.log(10);
+                } else {
+                    model.addArpaEntry(words, k, probability, weight);
+                }
+                read++;
+            }
+            if (read != grams[k]) {
+                throw error("\\data\\ promised " + grams[k] + " " + k + "-grams but there were " + read);
+            }
+        }
+        return model;
+    }
+
+    // Moves to the next line, reading more of the file if it isn't all in
+    // the buffer; false at the end of the file. A \r before the newline
+    // counts as a space
+    private boolean nextLine() throws IOException
+    {
+        position = next;
+        int newline = find('\n', position);
+        while (newline < 0 && !atEnd) {
+            fill();
+            newline = find('\n', position);
+        }
+        if (newline >= 0) {
+            next = newline + 1;
+        } else if (position < limit) {
+            // A last line with no newline
+            newline = limit;
+            next = limit;
+        } else {
+            return false;
+        }
+        lineNumber++;
+        lineStart = position;
+        lineEnd = newline;
+        return true;
+    }
+
+    // Makes nextLine() return the current line again
+    private void unread()
+    {
+        next = lineStart;
+        lineNumber--;
+    }
+
+    private int find(char c, int from)
+    {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Moves the unparsed bytes (from position on) to the front of the buffer (growing it if a
+    // line fills all of it) and reads more after them
+    private void fill() throws IOException
+    {
+        int remaining = limit - position;
+        if (remaining == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, position, bigger, 0, remaining);
+            buffer = bigger;
+        } else {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+        ByteBuffer target = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+        int read = channel.read(target);
+        if (read < 0) {
+            atEnd = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private boolean isBlank()
+    {
+        skipSpace();
+        return position == lineEnd;
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private void skipSpace()
+    {
+        while (position < lineEnd && isSpace(buffer[position])) {
+            position++;
+        }
+    }
+
+    // The current line, but for surrounding spaces, is text
+    private boolean lineIs(String text)
+    {
+        skipSpace();
+        int end = lineEnd;
+        while (end > position && isSpace(buffer[end-1])) {
+            end--;
+        }
+        return equals(position, end, text);
+    }
+
+    private boolean startsWith(String text)
+    {
+        return lineEnd - position >= text.length() && equals(position, position + text.length(), text);
+    }
+
+    // The bytes [start, end) are the ASCII text
+    private boolean equals(int start, int end, String text)
+    {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Id of the word in the bytes [start, end), whose hash is hash (not
+    // 0), added to vocab if it is new. With check, the id is checked
+    // against (or added to) vocab even if the hash is known
+    private int id(Vocabulary vocab, int start, int end, long hash, boolean check) throws IOException
+    {
+        int mask = wordTable.length / 2 - 1;
+        long mixed = hash * 0x9E3779B97F4A7C15L;
+        for (int slot = (int) (mixed ^ (mixed >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = wordTable[2*slot];
+            if (slotHash == hash) {
+                int id = (int) wordTable[2*slot+1];
+                if (check && id != vocabId(vocab, start, end)) {
+                    throw error("Two words share a hash; load this file with a different one");
+                }
+                return id;
+            }
+            if (slotHash == 0) {
+                int id = vocabId(vocab, start, end);
+                wordTable[2*slot] = hash;
+                wordTable[2*slot+1] = id;
+                if (++numWords * 2 > wordTable.length / 2) {
+                    rehashWords();
+                }
+                return id;
+            }
+        }
+    }
+
+    private void rehashWords()
+    {
+        long[] old = wordTable;
+        wordTable = new long[old.length * 2];
+        int mask = wordTable.length / 2 - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0) {
+                long mixed = old[i] * 0x9E3779B97F4A7C15L;
+                int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+                while (wordTable[2*slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                wordTable[2*slot] = old[i];
+                wordTable[2*slot+1] = old[i+1];
+            }
+        }
+    }
+
+    // Id of the word in the bytes [start, end) in vocab, added if it is new
+    private int vocabId(Vocabulary vocab, int start, int end) throws IOException
+    {
+        chars.setLength(0);
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b < 0) {
+                // Not ASCII: decode the whole word properly
+                return vocab.id(new String(buffer, start, end - start, "UTF-8"));
+            }
+            chars.append((char) b);
+        }
+        return vocab.id(chars, 0, chars.length());
+    }
+
+    // A non-negative integer
+    private long parseInteger() throws IOException
+    {
+        int start = position;
+        long value = 0;
+        while (position < lineEnd && buffer[position] >= '0' && buffer[position] <= '9') {
+            value = 10*value + buffer[position] - '0';
+            position++;
+        }
+        if (position == start) {
+            throw error("Expected an integer");
+        }
+        return value;
+    }
+
+    // A decimal number, as in -1.234 or -2.5e-05, ending at a space or the end of the line
+    private double parseNumber() throws IOException
+    {
+        skipSpace();
+        int start = position;
+        boolean negative = false;
+        if (position < lineEnd && (buffer[position] == '-' || buffer[position] == '+')) {
+            negative = buffer[position] == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        boolean exact = true; // The mantissa holds every significant digit
+        boolean anyDigits = false;
+        boolean afterPoint = false;
+        for (; position < lineEnd; position++) {
+            byte b = buffer[position];
+            if (b == '.' && !afterPoint) {
+                afterPoint = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (mantissa < MAX_EXACT / 10) {
+                mantissa = 10*mantissa + digit;
+                if (afterPoint) {
+                    exponent--;
+                }
+            } else {
+                exact = false;
+            }
+        }
+        if (position < lineEnd && (buffer[position] == 'e' || buffer[position] == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (position < lineEnd && (buffer[position] == '-' || buffer[position] == '+')) {
+                negativeExponent = buffer[position] == '-';
+                position++;
+            }
+            int digits = 0;
+            int value = 0;
+            while (position < lineEnd && buffer[position] >= '0' && buffer[position] <= '9') {
+                value = Math.min(10*value + buffer[position] - '0', 10000);
+                position++;
+                digits++;
+            }
+            if (digits == 0) {
+                throw error("Bad number");
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (position < lineEnd && !isSpace(buffer[position])) {
+            // inf, nan and the like
+            while (position < lineEnd && !isSpace(buffer[position])) {
+                position++;
+            }
+            return slowNumber(start);
+        }
+        if (!anyDigits) {
+            throw error("Expected a number");
+        }
+        if (!exact || exponent < -22 || exponent > 22) {
+            return slowNumber(start);
+        }
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    // The number in the bytes [start, position), the slow way
+    private double slowNumber(int start) throws IOException
+    {
+        String text = new String(buffer, start, position - start, "US-ASCII");
+        if (text.equalsIgnoreCase("-inf") || text.equalsIgnoreCase("-infinity")) {
+            return NO_PROBABILITY;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException nfe) {
+            throw error("Bad number \"" + text + "\"");
+        }
+    }
+
+    private IOException error(String message)
+    {
+        return new IOException(filename + ", line " + lineNumber + ": " + message);
+    }
+}
@@ -0,0 +1,1056 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Backoff scoring over every order from unigrams up to n, built from a
+ * trained Ngram's n-gram counts.
+ *
+ * Each position of the training set has exactly one n-gram window ending at
+ * it (padded with START), so the count of any shorter k-gram is the sum of
+ * the counts of the n-grams ending in it. All those k-grams are kept in one
+ * suffix trie: a node's path from the root spells its k-gram from the last
+ * word back to the first, so a node's parent is the same k-gram without its
+ * first word -- the one to back off to. Each node stores its count, its
+ * count as a context (the sum of the counts of the k-grams it starts) and,
+ * once built, a natural-log probability and backoff weight, as in the ARPA
+ * format:
+ *
+ *   ln P(w | h) = logProbability(h w)                  if h w was seen
+ *               = backoff(h) + ln P(w | h minus its first word)   otherwise
+ *
+ * A query walks the suffix trie once along the words to be predicted and
+ * once along the context, at most n steps each.
+ *
+ * quantize() swaps the two columns of doubles for one- or two-byte codes
+ * into a codebook per order (see Quantizer), for serving a built model in
+ * a fraction of the memory.
+ *
+ *   STUPID: logProbability = ln(count(h w) / count(h)), a constant backoff
+ *           of ln 0.4 at every step (Brants et al. 2007); not normalized
+ *   KATZ:   Good-Turing discounted counts below KATZ_THRESHOLD, with the
+ *           backoff weights that make each context's distribution sum to 1
+ *   KNESER_NEY: interpolated modified Kneser-Ney (Chen and Goodman 1998),
+ *           stored in the same form: a seen k-gram's probability already
+ *           includes its interpolated lower orders, and backoff(h) is the
+ *           interpolation weight gamma(h). Orders below n use continuation
+ *           counts (the number of distinct words seen before the k-gram),
+ *           except k-grams starting with START, which nothing can precede
+ *   ARPA:   read from an ARPA file by ArpaFile, whatever it was built with;
+ *           scored like KATZ and KNESER_NEY
+ */
+public class BackoffModel
+{
+    public static final int NONE = -1; // Missing node
+    public static final int ROOT = 0;
+    public static final double STUPID_BACKOFF = 0.4; // Weight of each backoff step for STUPID
+    public static final int KATZ_THRESHOLD = 5; // Counts above this aren't discounted by KATZ
+    private static final long EMPTY = -1L; // Unused table slot (real keys are never negative)
+    private static final double LN_10 = Math.log(10);
+
+    public enum Scheme { STUPID, KATZ, KNESER_NEY, ARPA }
+
+    public final int n; // Highest order (as in n-gram)
+    public final Scheme scheme;
+    public final Vocabulary vocab; // Shared with the model this was built from
+    public double unknownLogProbability; // ln P of a word that was never seen
+
+    // Per-node arrays, indexed by node id
+    private int nodes; // Number of node ids handed out
+    private int[] word; // First word of the node's k-gram
+    private int[] parent; // The k-gram without its first word
+    private byte[] depth; // k
+    private double[] count; // Times the k-gram was seen (0 for nodes that are only contexts)
+    private double[] contextCount; // Sum of the counts of the (k+1)-grams it starts
+    private double[] logProbability;
+    private double[] backoff; // ln of the backoff weight as a context
+
+    // Once quantized, logProbability and backoff are replaced by codes into
+    // a codebook per order. Nodes are then numbered order by order, and
+    // [k][node - firstNode[k]] holds the code of a k-gram node (codeBytes[k]
+    // bytes per node, high byte first)
+    private Quantizer[] probabilityCodebook;
+    private Quantizer[] backoffCodebook;
+    private byte[][] probabilityCode;
+    private byte[][] backoffCode;
+    private int[] codeBytes;
+    private int[] firstNode;
+
+    // (parent, word) => child table
+    private long[] keys;
+    private int[] children;
+    private int tableSize;
+
+    public static void main(String[] args)
+    {
+        if (args.length != 4 && args.length != 6 && args.length != 7) {
+            System.out.println("You must supply 4 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) Test file, directory or glob\n(3) an integer n > 1\n(4) stupid, katz or kneser-ney\n" +
+                               "To prune, also supply:\n(5) minimum counts for orders 2..n, e.g. 1,2,2\n" +
+                               "(6) relative entropy threshold, e.g. 1e-8 (0 for none)\n" +
+                               "To quantize after that, also supply:\n(7) bits per code for orders 1..n, e.g. 16,8,8");
+            System.exit(1);
+        }
+
+        Ngram model = new Ngram(Corpus.openOrExit(args[0]), Integer.parseInt(args[2]));
+        model.train();
+        BackoffModel backoff = new BackoffModel(model, Scheme.valueOf(args[3].toUpperCase().replace('-', '_')));
+
+        System.out.println("Done training.");
+
+        Corpus testset = Corpus.openOrExit(args[1]);
+        PerplexityEvaluator before = backoff.evaluate(testset);
+        System.out.println(before);
+        if (args.length == 4) {
+            return;
+        }
+
+        String[] counts = args[4].split(",");
+        double[] minCount = new double[counts.length + 2];
+        for (int i = 0; i < counts.length; i++) {
+            minCount[i+2] = Double.parseDouble(counts[i]);
+        }
+        int nodesBefore = backoff.size();
+        int[] gramsBefore = backoff.gramsPerOrder();
+        int removed = backoff.prune(minCount, Double.parseDouble(args[5]));
+        int[] gramsAfter = backoff.gramsPerOrder();
+        PerplexityEvaluator after = backoff.evaluate(testset);
+
+        System.out.println("Pruned " + removed + " k-grams, trie nodes " + nodesBefore + " -> " + backoff.size());
+        for (int k = 1; k <= backoff.n; k++) {
+            System.out.println("  " + k + "-grams: " + gramsBefore[k] + " -> " + gramsAfter[k]);
+        }
+        System.out.println("Perplexity " + before.perplexity() + " -> " + after.perplexity() +
+                           String.format(" (%+.2f%%)", 100 * (after.perplexity() / before.perplexity() - 1)));
+        if (args.length == 6) {
+            return;
+        }
+
+        String[] widths = args[6].split(",");
+        int[] bits = new int[backoff.n + 1];
+        boolean valid = widths.length == backoff.n;
+        for (int i = 0; valid && i < widths.length; i++) {
+            bits[i+1] = Integer.parseInt(widths[i].trim());
+            valid = bits[i+1] >= 1 && bits[i+1] <= 16;
+        }
+        if (!valid) {
+            System.out.println("(7) must give " + backoff.n + " comma-separated widths of 1 to 16 bits, " +
+                               "one for each order 1.." + backoff.n + ", not " + args[6]);
+            System.exit(1);
+        }
+        long bytesBefore = backoff.probabilityBytes();
+        backoff.quantize(bits);
+        PerplexityEvaluator quantized = backoff.evaluate(testset);
+
+        System.out.println("Quantized probabilities and backoff weights, " + bytesBefore + " -> " +
+                           backoff.probabilityBytes() + " bytes");
+        System.out.println("Perplexity " + after.perplexity() + " -> " + quantized.perplexity() +
+                           String.format(" (%+.2f%%)", 100 * (quantized.perplexity() / after.perplexity() - 1)));
+    }
+
+    public BackoffModel(Ngram model, Scheme scheme)
+    {
+        this(model.n, scheme, model.vocab, 1024);
+        if (scheme == Scheme.ARPA) {
+            throw new IllegalArgumentException("ARPA models are read with ArpaFile");
+        }
+
+        model.ngc.forEachNgram(new NgramStore.Visitor() {
+            public void visit(int[] ngram, double times)
+            {
+                add(ngram, times);
+            }
+        });
+
+        if (scheme == Scheme.STUPID) {
+            makeStupidBackoff();
+        } else if (scheme == Scheme.KATZ) {
+            makeKatzBackoff();
+        } else {
+            makeKneserNey();
+        }
+    }
+
+    // An empty model with room for capacity nodes (the root included)
+    private BackoffModel(int n, Scheme scheme, Vocabulary vocab, int capacity)
+    {
+        this.n = n;
+        this.scheme = scheme;
+        this.vocab = vocab;
+
+        this.word = new int[capacity];
+        this.parent = new int[capacity];
+        this.depth = new byte[capacity];
+        this.count = new double[capacity];
+        this.contextCount = new double[capacity];
+        int tableCapacity = 4;
+        while (tableCapacity * 3 < capacity * 4) {
+            tableCapacity *= 2;
+        }
+        this.keys = new long[tableCapacity];
+        this.children = new int[tableCapacity];
+        Arrays.fill(keys, EMPTY);
+        newNode(NONE, NONE);
+    }
+
+    // An empty model for ArpaFile to fill in with addArpaEntry, sized for
+    // the number of n-grams the file says it has
+    BackoffModel(int n, Vocabulary vocab, int ngrams)
+    {
+        this(n, Scheme.ARPA, vocab, ngrams + 1);
+        logProbability = new double[count.length];
+        backoff = new double[count.length];
+        unknownLogProbability = ArpaFile.NO_PROBABILITY * LN_10;
+    }
+
+    // Adds the ARPA entry for words[0, k): its log10 probability (NO_PROBABILITY
+    // for a k-gram only listed as a context) and log10 backoff weight
+    void addArpaEntry(int[] words, int k, double log10Probability, double log10Backoff)
+    {
+        int node = ROOT;
+        for (int i = k-1; i >= 0; i--) {
+            node = childOrAdd(node, words[i]);
+        }
+        if (log10Probability > ArpaFile.NO_PROBABILITY) {
+            // No counts are known, but lookups need seen k-grams to have one
+            count[node] = 1.0;
+        }
+        logProbability[node] = log10Probability * LN_10;
+        backoff[node] = log10Backoff * LN_10;
+    }
+
+    // Writes the model in the ARPA format, log10 probabilities and backoff
+    // weights by order. Every seen k-gram is listed, and so is every context
+    // of a listed one, even with a backoff weight of 1, as ARPA readers
+    // expect (and so the file reads back into the same trie): a context that
+    // wasn't seen itself (or was pruned) gets the probability the model
+    // backs off to, or NO_PROBABILITY if it ends in START. START is written as <s> and the
+    // probability of words never seen as that of <unk>. ARPA readers only
+    // back off through contexts that are listed, so a STUPID model, which
+    // takes a step of ln 0.4 for every word of context, scores higher once
+    // written
+    public void writeArpa(String filename) throws IOException
+    {
+        boolean[] listed = new boolean[nodes];
+        for (int node = 1; node < nodes; node++) {
+            listed[node] = count[node] > 0 || contextCount[node] > 0 || storedBackoff(node) != 0;
+        }
+        // Highest order first, so the contexts of contexts are listed too
+        for (int k = n; k > 1; k--) {
+            for (int node = 1; node < nodes; node++) {
+                if (depth[node] == k && listed[node]) {
+                    int context = context(node);
+                    if (context != NONE) {
+                        listed[context] = true;
+                    }
+                }
+            }
+        }
+        int[] listedPerOrder = new int[n+1];
+        for (int node = 1; node < nodes; node++) {
+            if (listed[node]) {
+                listedPerOrder[depth[node]]++;
+            }
+        }
+        listedPerOrder[1]++; // <unk>
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"), 1 << 16);
+        try {
+            out.write("\\data\\\n");
+            for (int k = 1; k <= n; k++) {
+                out.write("ngram " + k + "=" + listedPerOrder[k] + "\n");
+            }
+            StringBuilder line = new StringBuilder();
+            int[] words = new int[n];
+            for (int k = 1; k <= n; k++) {
+                out.write("\n\\" + k + "-grams:\n");
+                if (k == 1) {
+                    out.write(log10(unknownLogProbability) + "\t" + ArpaFile.UNKNOWN + "\n");
+                }
+                for (int node = 1; node < nodes; node++) {
+                    if (depth[node] != k || !listed[node]) {
+                        continue;
+                    }
+                    words(node, words);
+                    double probability;
+                    if (count[node] > 0) {
+                        probability = storedLogProbability(node);
+                    } else if (words[k-1] == Vocabulary.START) {
+                        probability = ArpaFile.NO_PROBABILITY * LN_10;
+                    } else {
+                        probability = logProbability(Arrays.copyOf(words, k));
+                    }
+                    line.setLength(0);
+                    line.append(log10(probability));
+                    for (int i = 0; i < k; i++) {
+                        line.append(i == 0 ? '\t' : ' ');
+                        line.append(words[i] == Vocabulary.START ? ArpaFile.START : vocab.word(words[i]));
+                    }
+                    double weight = storedBackoff(node);
+                    if (k < n && weight != 0) {
+                        line.append('\t').append(log10(weight));
+                    }
+                    line.append('\n');
+                    out.write(line.toString());
+                }
+            }
+            out.write("\n\\end\\\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // A natural log as the log10 an ARPA file holds, to float precision as usual
+    private static String log10(double ln)
+    {
+        return Float.toString((float) (ln / LN_10));
+    }
+
+    // Counts every k-gram ending in the n-gram's last word, and every k-gram
+    // ending just before it as a context
+    private void add(int[] ngram, double times)
+    {
+        int node = ROOT;
+        for (int i = n-1; i >= 0; i--) {
+            node = childOrAdd(node, ngram[i]);
+            count[node] += times;
+        }
+        node = ROOT;
+        contextCount[node] += times;
+        for (int i = n-2; i >= 0; i--) {
+            node = childOrAdd(node, ngram[i]);
+            contextCount[node] += times;
+        }
+    }
+
+    private void makeStupidBackoff()
+    {
+        logProbability = new double[nodes];
+        backoff = new double[nodes];
+        double numberWithCountOne = 0;
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0) {
+                logProbability[node] = Math.log(count[node] / contextCount[context(node)]);
+                if (depth[node] == 1 && count[node] == 1.0) {
+                    numberWithCountOne++;
+                }
+            }
+            backoff[node] = Math.log(STUPID_BACKOFF);
+        }
+        // As for good turing, N1/N as per book (page 101?)
+        unknownLogProbability = Math.log(numberWithCountOne / contextCount[ROOT]);
+    }
+
+    private void makeKatzBackoff()
+    {
+        logProbability = new double[nodes];
+        backoff = new double[nodes];
+
+        // Count-of-counts for each order, for the Good-Turing discounts
+        ArrayList<HashMap<Double, Double>> numberWithCount = new ArrayList<HashMap<Double, Double>>();
+        for (int k = 0; k <= n; k++) {
+            numberWithCount.add(new HashMap<Double, Double>());
+        }
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0) {
+                HashMap<Double, Double> numberOfOrder = numberWithCount.get(depth[node]);
+                Double number = numberOfOrder.get(count[node]);
+                numberOfOrder.put(count[node], number == null ? 1.0 : number + 1.0);
+            }
+        }
+        double[][] discount = new double[n+1][];
+        for (int k = 1; k <= n; k++) {
+            discount[k] = katzDiscounts(numberWithCount.get(k));
+        }
+
+        // Probability mass of each context's seen words, and of the same words
+        // one order down; filled in an order at a time so the lower order is done
+        double[] seenMass = new double[nodes];
+        double[] lowerMass = new double[nodes];
+        double[] probability = new double[nodes];
+        for (int k = 1; k <= n; k++) {
+            for (int node = 1; node < nodes; node++) {
+                if (depth[node] != k || count[node] == 0) {
+                    continue;
+                }
+                double c = count[node];
+                double d = c <= KATZ_THRESHOLD ? discount[k][(int) c] : 1.0;
+                int context = context(node);
+                probability[node] = d * c / contextCount[context];
+                logProbability[node] = Math.log(probability[node]);
+                seenMass[context] += probability[node];
+                if (k > 1) {
+                    lowerMass[context] += probability[parent[node]];
+                }
+            }
+        }
+        for (int node = 0; node < nodes; node++) {
+            if (contextCount[node] == 0 || lowerMass[node] >= 1.0) {
+                continue;
+            }
+            // A context whose words were all seen more than KATZ_THRESHOLD
+            // times has nothing left over; it keeps 1/count(h) for unseen
+            // words, as if it had been seen once more, so that they never
+            // get probability 0
+            double left = Math.max(1.0 - seenMass[node], 1.0 / contextCount[node]);
+            backoff[node] = Math.log(left / (1.0 - lowerMass[node]));
+        }
+        // What the discounted unigrams leave over goes to unseen words
+        unknownLogProbability = backoff[ROOT];
+    }
+
+    private void makeKneserNey()
+    {
+        logProbability = new double[nodes];
+        backoff = new double[nodes];
+
+        // The count each k-gram is smoothed with: its own count at order n and
+        // for k-grams starting with START, otherwise the number of distinct
+        // words seen before it (its seen children in the suffix trie)
+        double[] adjusted = new double[nodes];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0 && depth[node] > 1) {
+                adjusted[parent[node]]++;
+            }
+        }
+        for (int node = 1; node < nodes; node++) {
+            if (depth[node] == n || word[node] == Vocabulary.START) {
+                adjusted[node] = count[node];
+            }
+        }
+
+        // Per order, how many k-grams have adjusted count 1, 2, 3 and 4
+        double[][] numberWithCount = new double[n+1][5];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0 && adjusted[node] <= 4) {
+                numberWithCount[depth[node]][(int) adjusted[node]]++;
+            }
+        }
+        double[][] discount = new double[n+1][];
+        for (int k = 1; k <= n; k++) {
+            discount[k] = kneserNeyDiscounts(numberWithCount[k]);
+        }
+
+        // Each context's total adjusted count, and the mass its discounts free up
+        double[] total = new double[nodes];
+        double[] freed = new double[nodes];
+        int[] context = new int[nodes];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] == 0) {
+                continue;
+            }
+            context[node] = context(node);
+            total[context[node]] += adjusted[node];
+            freed[context[node]] += discount[depth[node]][(int) Math.min(adjusted[node], 3)];
+        }
+        for (int node = 0; node < nodes; node++) {
+            if (total[node] > 0) {
+                // gamma(h)
+                backoff[node] = Math.log(freed[node] / total[node]);
+            }
+        }
+
+        // Unigrams interpolate with a uniform distribution over the vocabulary
+        // (every id but START, plus one for unseen words)
+        double uniform = 1.0 / vocab.size();
+        unknownLogProbability = backoff[ROOT] + Math.log(uniform);
+        for (int k = 1; k <= n; k++) {
+            for (int node = 1; node < nodes; node++) {
+                if (depth[node] != k || count[node] == 0) {
+                    continue;
+                }
+                int h = context[node];
+                double d = discount[k][(int) Math.min(adjusted[node], 3)];
+                double lower = k == 1 ? uniform : Math.exp(logProbability[parent[node]]);
+                logProbability[node] = Math.log((adjusted[node] - d) / total[h] + Math.exp(backoff[h]) * lower);
+            }
+        }
+    }
+
+    // D1, D2 and D3+ (at [1], [2], [3]) from the number of k-grams with
+    // counts 1 to 4, as in Chen and Goodman; where one can't be estimated
+    // (a count never occurs) it falls back to the plain Kneser-Ney D = Y
+    private static double[] kneserNeyDiscounts(double[] numberWithCount)
+    {
+        double n1 = numberWithCount[1];
+        double n2 = numberWithCount[2];
+        double y = n1 + 2*n2 > 0 ? n1 / (n1 + 2*n2) : 0.5;
+        if (!(y > 0 && y < 1)) {
+            y = 0.5;
+        }
+        double[] d = new double[4];
+        for (int c = 1; c <= 3; c++) {
+            double nc = numberWithCount[c];
+            d[c] = nc > 0 ? c - (c+1) * y * numberWithCount[c+1] / nc : y;
+            if (!(d[c] > 0 && d[c] < c)) {
+                d[c] = y;
+            }
+        }
+        return d;
+    }
+
+    // d[r] for 1 <= r <= KATZ_THRESHOLD, from Katz (1987):
+    //   d = (r*/r - (k+1)N(k+1)/N(1)) / (1 - (k+1)N(k+1)/N(1))
+    // falling back to r*/r, and then to no discount, where that isn't in (0, 1]
+    private static double[] katzDiscounts(HashMap<Double, Double> numberWithCount)
+    {
+        double[] d = new double[KATZ_THRESHOLD + 1];
+        double n1 = number(numberWithCount, 1);
+        double common = n1 == 0 ? 0 : (KATZ_THRESHOLD+1) * number(numberWithCount, KATZ_THRESHOLD+1) / n1;
+        for (int r = 1; r <= KATZ_THRESHOLD; r++) {
+            double nr = number(numberWithCount, r);
+            double ratio = nr == 0 ? 1.0 : (r+1) * number(numberWithCount, r+1) / nr / r;
+            d[r] = (ratio - common) / (1.0 - common);
+            if (!(d[r] > 0 && d[r] <= 1)) {
+                d[r] = ratio > 0 && ratio <= 1 ? ratio : 1.0;
+            }
+        }
+        return d;
+    }
+
+    private static double number(HashMap<Double, Double> numberWithCount, double c)
+    {
+        Double number = numberWithCount.get(c);
+        return number == null ? 0.0 : number;
+    }
+
+    // The node of the context the node's k-gram is predicted from (its first k-1 words)
+    private int context(int node)
+    {
+        int k = depth[node];
+        int[] words = new int[k];
+        words(node, words);
+        int context = ROOT;
+        for (int i = k-2; i >= 0; i--) {
+            context = child(context, words[i]);
+        }
+        return context;
+    }
+
+    // Fills words[0..k) with the node's k-gram
+    public void words(int node, int[] words)
+    {
+        for (int i = 0; node != ROOT; i++, node = parent[node]) {
+            words[i] = word[node];
+        }
+    }
+
+    // Count of a k-gram of any order 1 <= k <= n
+    public double count(int[] gram)
+    {
+        int node = ROOT;
+        for (int i = gram.length-1; i >= 0 && node != NONE; i--) {
+            node = child(node, gram[i]);
+        }
+        return node == NONE ? 0.0 : count[node];
+    }
+
+    public double probability(String[] words)
+    {
+        return Math.exp(logProbability(vocab.lookupAll(words)));
+    }
+
+    public double probability(int[] words)
+    {
+        return Math.exp(logProbability(words));
+    }
+
+    // ln P of the last word given the ones before it (at most n words are used)
+    public double logProbability(int[] words)
+    {
+        int last = words.length - 1;
+        int length = Math.min(words.length, n);
+
+        // The longest seen k-gram ending in the last word
+        int node = ROOT;
+        int found = 0;
+        for (int k = 1; k <= length; k++) {
+            int next = child(node, words[last-k+1]);
+            if (next == NONE || count[next] == 0) {
+                break;
+            }
+            node = next;
+            found = k;
+        }
+        double result = found == 0 ? unknownLogProbability : storedLogProbability(node);
+
+        // Back off from each longer context
+        if (scheme == Scheme.STUPID) {
+            return result + (length - Math.max(found, 1)) * Math.log(STUPID_BACKOFF);
+        }
+        int context = ROOT;
+        for (int j = 1; j < length; j++) {
+            context = child(context, words[last-j]);
+            if (context == NONE) {
+                break;
+            }
+            if (j >= found) {
+                result += storedBackoff(context);
+            }
+        }
+        return result;
+    }
+
+    private double storedLogProbability(int node)
+    {
+        if (probabilityCode == null) {
+            return logProbability[node];
+        }
+        return probabilityCodebook[depth[node]].decode(code(probabilityCode, node));
+    }
+
+    private double storedBackoff(int node)
+    {
+        if (backoffCode == null) {
+            return backoff[node];
+        }
+        return backoffCodebook[depth[node]].decode(code(backoffCode, node));
+    }
+
+    private int code(byte[][] codes, int node)
+    {
+        int k = depth[node];
+        int i = node - firstNode[k];
+        if (codeBytes[k] == 1) {
+            return codes[k][i] & 0xFF;
+        }
+        return (codes[k][2*i] & 0xFF) << 8 | (codes[k][2*i+1] & 0xFF);
+    }
+
+    // Replaces the stored log-probabilities and backoff weights with codes
+    // into codebooks fitted per order, bits[k] bits for order k (1 <= k <= n;
+    // the root's backoff weight goes with the unigrams), each order's codes
+    // taking one byte if its codebooks fit in 8 bits and two otherwise. The
+    // nodes are first renumbered order by order. Each codebook is
+    // fitted to the values that can be read, weighted by how often training
+    // read them: seen k-grams' probabilities by their counts and backoff
+    // weights by context counts (at least 1, as a k-gram never seen as a
+    // context still backs off, with weight 1). The model can't be pruned
+    // afterwards
+    public void quantize(int[] bits)
+    {
+        if (probabilityCode != null) {
+            throw new IllegalStateException("The model is already quantized");
+        }
+        if (bits.length < n+1) {
+            throw new IllegalArgumentException("Need code widths for orders 1.." + n + ", not " + (bits.length - 1));
+        }
+        for (int k = 1; k <= n; k++) {
+            if (bits[k] < 1 || bits[k] > 16) {
+                throw new IllegalArgumentException("Codes for order " + k + " need 1 to 16 bits, not " + bits[k]);
+            }
+        }
+
+        // Number the nodes order by order (a parent is still before its children)
+        firstNode = new int[n+2];
+        for (int node = 0; node < nodes; node++) {
+            firstNode[depth[node] + 1]++;
+        }
+        for (int k = 1; k <= n+1; k++) {
+            firstNode[k] += firstNode[k-1];
+        }
+        int[] byOrder = new int[nodes];
+        int[] next = Arrays.copyOf(firstNode, n+1);
+        for (int node = 0; node < nodes; node++) {
+            byOrder[next[depth[node]]++] = node;
+        }
+        renumber(byOrder, nodes);
+
+        probabilityCodebook = new Quantizer[n+1];
+        backoffCodebook = new Quantizer[n+1];
+        probabilityCode = new byte[n+1][];
+        backoffCode = new byte[n+1][];
+        codeBytes = new int[n+1];
+        double[] probabilities = new double[nodes];
+        double[] probabilityWeights = new double[nodes];
+        double[] backoffs = new double[nodes];
+        double[] backoffWeights = new double[nodes];
+        for (int k = 0; k <= n; k++) {
+            int seen = 0;
+            int all = 0;
+            for (int node = firstNode[k]; node < firstNode[k+1]; node++) {
+                if (count[node] > 0) {
+                    probabilities[seen] = logProbability[node];
+                    probabilityWeights[seen++] = count[node];
+                }
+                backoffs[all] = backoff[node];
+                backoffWeights[all++] = Math.max(contextCount[node], 1.0);
+            }
+            int width = bits[Math.max(k, 1)];
+            probabilityCodebook[k] = Quantizer.fit(probabilities, probabilityWeights, seen, width);
+            backoffCodebook[k] = Quantizer.fit(backoffs, backoffWeights, all, width);
+            codeBytes[k] = probabilityCodebook[k].bits > 8 || backoffCodebook[k].bits > 8 ? 2 : 1;
+
+            probabilityCode[k] = new byte[all * codeBytes[k]];
+            backoffCode[k] = new byte[all * codeBytes[k]];
+            for (int node = firstNode[k]; node < firstNode[k+1]; node++) {
+                setCode(probabilityCode, node, count[node] > 0 ? probabilityCodebook[k].encode(logProbability[node]) : 0);
+                setCode(backoffCode, node, backoffCodebook[k].encode(backoff[node]));
+            }
+        }
+        logProbability = null;
+        backoff = null;
+    }
+
+    private void setCode(byte[][] codes, int node, int code)
+    {
+        int k = depth[node];
+        int i = node - firstNode[k];
+        if (codeBytes[k] == 1) {
+            codes[k][i] = (byte) code;
+        } else {
+            codes[k][2*i] = (byte) (code >>> 8);
+            codes[k][2*i+1] = (byte) code;
+        }
+    }
+
+    // Bytes used to store the log-probabilities and backoff weights
+    public long probabilityBytes()
+    {
+        if (probabilityCode == null) {
+            return 2L * 8 * nodes;
+        }
+        long bytes = 0;
+        for (int k = 0; k <= n; k++) {
+            bytes += probabilityCode[k].length + backoffCode[k].length;
+            bytes += 8L * (probabilityCodebook[k].size() + backoffCodebook[k].size());
+        }
+        return bytes;
+    }
+
+    public double perplexity(Iterable<String> testSamples)
+    {
+        return evaluate(testSamples).perplexity();
+    }
+
+    // Scores every token of the test set
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples)
+    {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator();
+
+        int[] nWords = new int[n];
+        SampleSource.Cursor cursor = Samples.cursor(testSamples);
+        while (cursor.next()) {
+            for (int i = 0; i < n; i++) {
+                nWords[i] = Vocabulary.START;
+            }
+            for (int match : vocab.lookupAll(cursor.sample())) {
+                // For each match, nWords is the ngram ending in match
+                for (int i = 0; i < n-1; i++) {
+                    nWords[i] = nWords[i+1];
+                }
+                nWords[n-1] = match;
+                evaluator.addLogProbability(logProbability(nWords), match == Vocabulary.UNKNOWN, cursor.times());
+            }
+        }
+        return evaluator;
+    }
+
+    // Number of trie nodes, including the root
+    public int size()
+    {
+        return nodes;
+    }
+
+    // [k] is the number of k-grams kept, for 1 <= k <= n
+    public int[] gramsPerOrder()
+    {
+        int[] grams = new int[n+1];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0) {
+                grams[depth[node]]++;
+            }
+        }
+        return grams;
+    }
+
+    // Removes k-grams (k > 1) seen fewer than minCount[k] times (minCount may
+    // be shorter than n+1) and, for the normalized schemes, k-grams whose
+    // removal raises the training-set perplexity by a relative amount below
+    // threshold (Stolcke 1998; 0 turns this off). Only k-grams nothing longer
+    // was seen to end in are candidates, so every seen k-gram keeps the one it
+    // backs off to. Backoff weights of the contexts that lost words are
+    // renormalized and the trie is compacted. Returns how many were removed.
+    public int prune(double[] minCount, double threshold)
+    {
+        if (probabilityCode != null) {
+            throw new IllegalStateException("A quantized model can't be pruned");
+        }
+        boolean normalized = scheme != Scheme.STUPID;
+
+        // Each context's seen mass and the same words' mass one order down
+        int[] context = new int[nodes];
+        double[] seenMass = new double[nodes];
+        double[] lowerMass = new double[nodes];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0 && depth[node] > 1) {
+                context[node] = context(node);
+                seenMass[context[node]] += Math.exp(logProbability[node]);
+                lowerMass[context[node]] += Math.exp(logProbability[parent[node]]);
+            }
+        }
+
+        // Highest order first, since a k-gram only becomes a candidate once
+        // every (k+1)-gram ending in it has gone
+        boolean[] pruned = new boolean[nodes];
+        double[] logContextProbability = new double[nodes];
+        Arrays.fill(logContextProbability, Double.NaN);
+        int removed = 0;
+        for (int k = n; k > 1; k--) {
+            // Which k-grams something longer still ends in
+            boolean[] extended = new boolean[nodes];
+            for (int node = 1; node < nodes; node++) {
+                if (depth[node] == k+1 && count[node] > 0 && !pruned[node]) {
+                    extended[parent[node]] = true;
+                }
+            }
+            for (int node = 1; node < nodes; node++) {
+                if (depth[node] != k || count[node] == 0 || extended[node]) {
+                    continue;
+                }
+                boolean prune = k < minCount.length && count[node] < minCount[k];
+                if (!prune && normalized && threshold > 0) {
+                    prune = Math.expm1(entropyIncrease(node, context[node], seenMass, lowerMass, logContextProbability)) < threshold;
+                }
+                if (prune) {
+                    pruned[node] = true;
+                    removed++;
+                }
+            }
+        }
+
+        // Take the pruned words out of their contexts' distributions
+        boolean[] renormalize = new boolean[nodes];
+        for (int node = 1; node < nodes; node++) {
+            if (pruned[node]) {
+                int h = context[node];
+                seenMass[h] -= Math.exp(logProbability[node]);
+                lowerMass[h] -= Math.exp(logProbability[parent[node]]);
+                renormalize[h] = normalized;
+            }
+        }
+        for (int node = 1; node < nodes; node++) {
+            if (pruned[node]) {
+                count[node] = 0;
+                logProbability[node] = 0;
+            }
+        }
+        for (int node = 1; node < nodes; node++) {
+            if (renormalize[node]) {
+                backoff[node] = Math.log(Math.max(1.0 - seenMass[node], Double.MIN_NORMAL) / (1.0 - lowerMass[node]));
+            }
+        }
+
+        compact();
+        return removed;
+    }
+
+    // Stolcke's increase in training-set entropy (nats) from dropping the
+    // k-gram node = (h w) and backing off to (h' w) instead:
+    //   -P(h) * [P(w|h) (ln P(w|h') + ln a'(h) - ln P(w|h)) + (1 - seen(h)) (ln a'(h) - ln a(h))]
+    private double entropyIncrease(int node, int h, double[] seenMass, double[] lowerMass,
+                                   double[] logContextProbability)
+    {
+        double p = Math.exp(logProbability[node]);
+        double pLower = Math.exp(logProbability[parent[node]]);
+        double logAlpha = backoff[h];
+        double logNewAlpha = Math.log((1.0 - seenMass[h] + p) / (1.0 - lowerMass[h] + pLower));
+        if (Double.isNaN(logContextProbability[h])) {
+            logContextProbability[h] = logContextProbability(h);
+        }
+        return -Math.exp(logContextProbability[h]) *
+            (p * (Math.log(pLower) + logNewAlpha - logProbability[node]) +
+             (1.0 - seenMass[h]) * (logNewAlpha - logAlpha));
+    }
+
+    // ln P(h) by the chain rule, with the START padding taken as given
+    private double logContextProbability(int h)
+    {
+        int[] words = new int[depth[h]];
+        words(h, words);
+        double result = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != Vocabulary.START) {
+                result += logProbability(Arrays.copyOf(words, i+1));
+            }
+        }
+        return result;
+    }
+
+    // Drops nodes that are neither seen k-grams nor contexts of one (nor on
+    // the way to either) and renumbers the rest
+    private void compact()
+    {
+        boolean[] keep = new boolean[nodes];
+        keep[ROOT] = true;
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] > 0) {
+                keep[node] = true;
+                keep[context(node)] = true;
+            }
+        }
+        // Parents always have lower ids than their children
+        for (int node = nodes-1; node > 0; node--) {
+            if (keep[node]) {
+                keep[parent[node]] = true;
+            }
+        }
+
+        int[] kept = new int[nodes];
+        int keeping = 0;
+        for (int node = 0; node < nodes; node++) {
+            if (keep[node]) {
+                kept[keeping++] = node;
+            }
+        }
+        renumber(kept, keeping);
+    }
+
+    // Makes node order[i] node i, for i < kept, dropping the nodes not in
+    // order (which must list the root first and every node after its parent),
+    // and rebuilds the child table
+    private void renumber(int[] order, int kept)
+    {
+        int[] newId = new int[nodes];
+        int[] newWord = new int[kept];
+        int[] newParent = new int[kept];
+        byte[] newDepth = new byte[kept];
+        double[] newCount = new double[kept];
+        double[] newContextCount = new double[kept];
+        double[] newLogProbability = new double[kept];
+        double[] newBackoff = new double[kept];
+        for (int i = 0; i < kept; i++) {
+            int node = order[i];
+            newId[node] = i;
+            newWord[i] = word[node];
+            newParent[i] = node == ROOT ? NONE : newId[parent[node]];
+            newDepth[i] = depth[node];
+            newCount[i] = count[node];
+            newContextCount[i] = contextCount[node];
+            newLogProbability[i] = logProbability[node];
+            newBackoff[i] = backoff[node];
+        }
+        nodes = kept;
+        word = newWord;
+        parent = newParent;
+        depth = newDepth;
+        count = newCount;
+        contextCount = newContextCount;
+        logProbability = newLogProbability;
+        backoff = newBackoff;
+
+        int capacity = 4;
+        while (capacity * 3 < kept * 4) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        children = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        tableSize = 0;
+        int mask = capacity - 1;
+        for (int node = 1; node < kept; node++) {
+            long key = key(parent[node], word[node]);
+            int slot = slot(key) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            children[slot] = node;
+            tableSize++;
+        }
+    }
+
+    private int child(int node, int w)
+    {
+        if (w < 0) {
+            return NONE;
+        }
+        long key = key(node, w);
+        int mask = keys.length - 1;
+        for (int slot = slot(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return children[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return NONE;
+            }
+        }
+    }
+
+    private int childOrAdd(int node, int w)
+    {
+        int child = child(node, w);
+        if (child != NONE) {
+            return child;
+        }
+        child = newNode(node, w);
+        depth[child] = (byte) (depth[node] + 1);
+
+        if ((tableSize + 1) * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        long key = key(node, w);
+        int mask = keys.length - 1;
+        int slot = slot(key) & mask;
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        children[slot] = child;
+        tableSize++;
+        return child;
+    }
+
+    private int newNode(int parentNode, int w)
+    {
+        if (nodes == count.length) {
+            int capacity = nodes * 2;
+            word = Arrays.copyOf(word, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            count = Arrays.copyOf(count, capacity);
+            contextCount = Arrays.copyOf(contextCount, capacity);
+            if (logProbability != null) {
+                // Only once built, i.e. while ArpaFile fills one in
+                logProbability = Arrays.copyOf(logProbability, capacity);
+                backoff = Arrays.copyOf(backoff, capacity);
+            }
+        }
+        int node = nodes++;
+        word[node] = w;
+        parent[node] = parentNode;
+        return node;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldChildren = children;
+        keys = new long[capacity];
+        children = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                children[slot] = oldChildren[i];
+            }
+        }
+    }
+
+    private static long key(int node, int w)
+    {
+        return ((long) node << 32) | (w & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -1,254 +1,501 @@
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Stack;
+import java.util.SplittableRandom;
 
-public class Bigram
+public class Bigram implements ParallelTrainer.Shard
 {
-    public Set<String> samples;
-    public HashMap<String, HashMap<String, Double>> counts;
-    public HashMap<String, Double> unigramCounts;
-    public final String START = ":S";
+    public Iterable<String> samples;
+    public Vocabulary vocab; // Maps words to the ids used everywhere else
+    public IntDoubleMap[] counts; // counts[id1].get(id2) is the count for bigram "word1 word2"
+    public double[] unigramCounts; // unigramCounts[id] is the count for word id as word1
+    public final int START = Vocabulary.START;
     
     // For add-one smoothing
-    public Set<String> wordSet; // Used to find the vocabulary
     public double vocabSize; // Size of the vocabulary
     
     // For Good Turing Smoothing
     public double numTrainingBigrams; // The size of the training set (# non-distinct words)
     public HashMap<Double, Double> numberOfBigramsWithCount; // The number of bigrams that occur x times
+    public GoodTuringTable goodTuringTable; // Good-Turing counts by raw count, made by freeze()
+    public double[] gtUnigramCounts; // gtUnigramCounts[id] is the sum of good turing counts of bigrams starting with id
     public boolean goodTuringCountsAvailable = false; // True when good turing counts are available
+    public AliasSampler[] samplers; // samplers[id1] draws word2 in proportion to count(id1, word2), made by freeze()
+    public ModelMetrics metrics = ModelMetrics.NONE; // Where training metrics go (see setMetrics)
     
     public static void main(String[] args)
     {
         if (args.length != 2) {
-            System.out.println("You must supply 2 arguments:\n(1) Training file\n" +
-                               "(2) Test file");
+            System.out.println("You must supply 2 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) Test file, directory or glob");
             System.exit(1);
         }
         
-		NgramParser p = new NgramParser(args[0], true);
-        HashSet<String> set = p.parse();
+		Corpus set = Corpus.openOrExit(args[0]);
         
         Bigram b = new Bigram(set);
         b.train();
+        b.freeze();
         
         System.out.println("Done training.");
 
         //System.out.println(b.getSentence());
         
-        NgramParser test = new NgramParser(args[1], true);
-        HashSet<String> testset = test.parse();
-        System.out.println("Perplexity of the test set: " + b.perplexity(testset));
+        Corpus testset = Corpus.openOrExit(args[1]);
+        System.out.println(b.evaluate(testset));
     }
     
-    public Bigram(Set<String> samples)
+    public Bigram(Iterable<String> samples)
+    {
+        this(samples, new Vocabulary());
+    }
+    
+    public Bigram(Iterable<String> samples, Vocabulary vocab)
     {
         this.samples = samples;
-        this.counts = new HashMap<String, HashMap<String, Double>>();
-        this.unigramCounts = new HashMap<String, Double>();
-        
-        this.wordSet = new HashSet<String>();
+        this.vocab = vocab;
+        this.counts = new IntDoubleMap[vocab.size()];
+        this.unigramCounts = new double[vocab.size()];
         
         this.numberOfBigramsWithCount = new HashMap<Double, Double>();
     }
     
     public void train()
     {
-        // Regexp to match words (starting with optional apos) or any punctuation (with probably extra escaping)
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
-        for (String sample : samples) {
-            Matcher matcher = pattern.matcher(sample);
-            String previousWord = START; // originally set to beginning-of-sentence marker
-            while (matcher.find()) {
-                // Set unigram counts (for word1)
-                double unigramCount = 0.0;
-                if (unigramCounts.containsKey(previousWord)) {
-                    unigramCount = unigramCounts.get(previousWord);
-                }
-                unigramCounts.put(previousWord, unigramCount+1.0);
-                
-                // Get the new match (word2)
-                String match = matcher.group();
-                wordSet.add(match);
-                
-                // Get access to (or create) the count map for word1.
-                HashMap<String, Double> innerCounts;
-                if (counts.containsKey(previousWord)) {
-                    innerCounts = counts.get(previousWord);
-                } else {
-                    innerCounts = new HashMap<String, Double>();
-                    counts.put(previousWord, innerCounts);
+        long start = metrics.start();
+        double before = numTrainingBigrams;
+        SampleSource.Cursor cursor = Samples.cursor(samples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
+        }
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingBigrams - before), start);
+    }
+    
+    // Reports training metrics to metrics, named name.* (see ModelMetrics),
+    // with gauges for the model's size (as of the last freeze()). Queries are
+    // a map lookup, cheaper than reading the clock, so they aren't timed
+    public void setMetrics(Metrics metrics, String name)
+    {
+        this.metrics = new ModelMetrics(metrics, name);
+        if (goodTuringCountsAvailable) {
+            reportSizes();
+        }
+        this.metrics.gauge("vocab.size", new Metrics.Gauge() {
+            public double value() { return vocab.size(); }
+        });
+    }
+    
+    // Walks the counts for the size gauges, if anyone is watching
+    private void reportSizes()
+    {
+        if (!metrics.enabled) {
+            return;
+        }
+        long maps = 0;
+        long bigrams = 0;
+        for (IntDoubleMap innerMap : counts) {
+            if (innerMap != null) {
+                maps++;
+                bigrams += innerMap.size();
+            }
+        }
+        metrics.size("maps", maps);
+        metrics.size("bigrams", bigrams);
+        metrics.size("bytes", bytes());
+    }
+    
+    // Rough heap bytes held by the counts and samplers (see ModelMetrics.arrayBytes)
+    public long bytes()
+    {
+        long bytes = ModelMetrics.arrayBytes(counts.length, 4) + ModelMetrics.arrayBytes(unigramCounts.length, 8);
+        for (IntDoubleMap innerMap : counts) {
+            if (innerMap != null) {
+                bytes += innerMap.bytes();
+            }
+        }
+        if (gtUnigramCounts != null) {
+            bytes += ModelMetrics.arrayBytes(gtUnigramCounts.length, 8);
+        }
+        if (samplers != null) {
+            bytes += ModelMetrics.arrayBytes(samplers.length, 4);
+            for (AliasSampler sampler : samplers) {
+                if (sampler != null) {
+                    bytes += sampler.bytes();
                 }
-                
-                // Add to the size of the training set for gt-smoothing
-                numTrainingBigrams += 1;
-                
-                // Set bigram counts
-                double count = 0.0;
-                if (innerCounts.containsKey(match)) {
-                    count = innerCounts.get(match);
-                    
-                    // Decrement the number of bigrams with old count for gt-smoothing
-                    numberOfBigramsWithCount.put(count,
-                        numberOfBigramsWithCount.get(count) - 1.0);
+            }
+        }
+        return bytes;
+    }
+    
+    // Adds newSamples to an already trained model. If it was frozen, the
+    // smoothing is brought up to date and only the samplers of contexts the
+    // new samples went through are rebuilt, so it can be queried again at once
+    public void update(Iterable<String> newSamples)
+    {
+        long start = metrics.start();
+        double before = numTrainingBigrams;
+        SampleSource.Cursor cursor = Samples.cursor(newSamples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
+        }
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingBigrams - before), start);
+        if (goodTuringCountsAvailable) {
+            freeze();
+        }
+    }
+    
+    // Trains on samples with one shard per thread, then merges the shards
+    public void trainParallel(int threads)
+    {
+        long start = metrics.start();
+        double before = numTrainingBigrams;
+        Bigram[] shards = new Bigram[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Bigram(null, new Vocabulary(vocab.tokenizer));
+        }
+        ParallelTrainer.run(samples, shards);
+        
+        for (Bigram shard : shards) {
+            merge(shard);
+        }
+        // Count-of-counts are only meaningful once every shard's counts are in
+        rebuildCountOfCounts();
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingBigrams - before), start);
+    }
+    
+    // Counts sample without maintaining numberOfBigramsWithCount (see trainParallel)
+    public void countSample(String sample)
+    {
+        countSample(sample, 1, false);
+    }
+    
+    // Counts times occurrences of sample (see SampleSource)
+    private void countSample(CharSequence sample, long times, boolean updateCountOfCounts)
+    {
+        int previousWord = START; // originally set to beginning-of-sentence marker
+        for (int match : vocab.encode(sample)) {
+            // Add to the size of the training set for gt-smoothing
+            numTrainingBigrams += times;
+            
+            // Set unigram (word1) and bigram counts
+            double count = addBigram(previousWord, match, times) - times;
+            
+            // Update previousWord
+            previousWord = match;
+            if (!updateCountOfCounts) {
+                continue;
+            }
+            
+            if (count > 0.0) {
+                // Decrement the number of bigrams with old count for gt-smoothing
+                numberOfBigramsWithCount.put(count,
+                    numberOfBigramsWithCount.get(count) - 1.0);
+            }
+            
+            // Increment the number of bigrams with the new count for gt-smoothing
+            if (!numberOfBigramsWithCount.containsKey(count+times)) {
+                numberOfBigramsWithCount.put(count+times, 1.0);
+            } else {
+                numberOfBigramsWithCount.put(count+times,
+                    numberOfBigramsWithCount.get(count+times) + 1.0);
+            }
+        }
+    }
+    
+    // Adds times to the counts of word1 and "word1 word2", returning the new bigram count
+    private double addBigram(int word1, int word2, double times)
+    {
+        ensureCapacity(Math.max(word1, word2));
+        unigramCounts[word1] += times;
+        if (samplers != null && word1 < samplers.length) {
+            samplers[word1] = null; // out of date, makeSamplers() will rebuild it
+        }
+        
+        // Get access to (or create) the count map for word1.
+        IntDoubleMap innerCounts = counts[word1];
+        if (innerCounts == null) {
+            innerCounts = new IntDoubleMap();
+            counts[word1] = innerCounts;
+        }
+        return innerCounts.add(word2, times);
+    }
+    
+    // Adds all of shard's counts into this model, translating its word ids to ours
+    public void merge(Bigram shard)
+    {
+        int[] ids = shard.vocab.idsIn(vocab);
+        for (int word1 = 0; word1 < ids.length && word1 < shard.counts.length; word1++) {
+            IntDoubleMap innerMap = shard.counts[word1];
+            for (int slot = 0; innerMap != null && slot < innerMap.capacity(); slot++) {
+                int word2 = innerMap.keyAt(slot);
+                if (word2 >= 0) {
+                    addBigram(ids[word1], ids[word2], innerMap.valueAt(slot));
                 }
-                innerCounts.put(match, count+1.0);
-                
-                // Increment the number of bigrams with the new count for gt-smoothing
-                if (!numberOfBigramsWithCount.containsKey(count+1.0)) {
-                    numberOfBigramsWithCount.put(count+1.0, 1.0);
-                } else {
-                    numberOfBigramsWithCount.put(count+1.0,
-                        numberOfBigramsWithCount.get(count+1.0) + 1.0);
+            }
+        }
+        numTrainingBigrams += shard.numTrainingBigrams;
+    }
+    
+    // Recount numberOfBigramsWithCount from scratch from counts
+    public void rebuildCountOfCounts()
+    {
+        numberOfBigramsWithCount.clear();
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            for (int slot = 0; innerMap != null && slot < innerMap.capacity(); slot++) {
+                if (innerMap.keyAt(slot) >= 0) {
+                    double count = innerMap.valueAt(slot);
+                    Double number = numberOfBigramsWithCount.get(count);
+                    numberOfBigramsWithCount.put(count, number == null ? 1.0 : number + 1.0);
                 }
-                
-                // Update previousWord
-                previousWord = match;
             }
         }
-        
-        vocabSize = wordSet.size();
+    }
+    
+    // Grow counts and unigramCounts so that they can be indexed by id
+    private void ensureCapacity(int id)
+    {
+        if (id >= counts.length) {
+            int size = Math.max(id + 1, counts.length * 2);
+            IntDoubleMap[] biggerCounts = new IntDoubleMap[size];
+            System.arraycopy(counts, 0, biggerCounts, 0, counts.length);
+            counts = biggerCounts;
+            double[] biggerUnigramCounts = new double[size];
+            System.arraycopy(unigramCounts, 0, biggerUnigramCounts, 0, unigramCounts.length);
+            unigramCounts = biggerUnigramCounts;
+        }
     }
     
     public double count(String word1, String word2)
     {
-        if (counts.containsKey(word1) && counts.get(word1).containsKey(word2)) {
-            return counts.get(word1).get(word2);
+        return count(vocab.lookup(word1), vocab.lookup(word2));
+    }
+    
+    public double count(int word1, int word2)
+    {
+        if (word1 >= 0 && word1 < counts.length && counts[word1] != null) {
+            return counts[word1].get(word2);
         }
         return 0.0;
     }
     
     public double unigramCount(String word)
     {
-        if (unigramCounts.containsKey(word)) {
-            return unigramCounts.get(word);
+        return unigramCount(vocab.lookup(word));
+    }
+    
+    public double unigramCount(int word)
+    {
+        if (word >= 0 && word < unigramCounts.length) {
+            return unigramCounts[word];
         }
         return 0.0;
     }
     
     public double unsmoothedProbability(String word1, String word2)
     {
-        if (counts.containsKey(word1)) {
-            if (counts.get(word1).containsKey(word2)) {
-                return counts.get(word1).get(word2) / unigramCounts.get(word1);
-            } else {
-                return 0.0;
-            }
-        } else {
-            return 0.0;
+        return unsmoothedProbability(vocab.lookup(word1), vocab.lookup(word2));
+    }
+    
+    public double unsmoothedProbability(int word1, int word2)
+    {
+        double count = count(word1, word2);
+        if (count > 0.0) {
+            return count / unigramCounts[word1];
         }
+        return 0.0;
     }
     
     public double addOneSmoothedProbability(String word1, String word2)
+    {
+        return addOneSmoothedProbability(vocab.lookup(word1), vocab.lookup(word2));
+    }
+    
+    public double addOneSmoothedProbability(int word1, int word2)
     {
         // (count(word1 word2) + 1) / (count(word1) + V)
         return (count(word1, word2) + 1.0) / (unigramCount(word1) + vocabSize);
     }
     
     public double goodTuringSmoothedProbability(String word1, String word2)
+    {
+        return goodTuringSmoothedProbability(vocab.lookup(word1), vocab.lookup(word2));
+    }
+    
+    public double goodTuringSmoothedProbability(int word1, int word2)
     {
         if (!goodTuringCountsAvailable) {
-            System.out.println("Making good turing counts...");
-            makeGoodTuringCounts();
-            System.out.println("Done making good turing counts.");
+            throw new IllegalStateException("Call freeze() after training to make good turing counts");
         }
         
         // If this bigram has occurred, return good turing probability
-        double gtcount = count(word1, word2);
+        double gtcount = goodTuringTable.count(count(word1, word2));
         if (gtcount > 0.0) {
-            return gtcount / unigramCount(word1);
+            return gtcount / gtUnigramCounts[word1];
         }
         // Otherwise, return N1/N as per book (page 101?)
-        return numberOfBigramsWithCount.get(1.0) / numTrainingBigrams;
+        return goodTuringTable.unseenProbability;
+    }
+    
+    // Call once training is done: works out everything the query methods
+    // need up front, so that no query ever changes the model
+    public void freeze()
+    {
+        makeGoodTuringCounts();
+        makeSamplers();
+        reportSizes();
+    }
+    
+    // Builds the sampler of every word that doesn't have an up to date one
+    public void makeSamplers()
+    {
+        samplers = samplers == null ? new AliasSampler[counts.length] : Arrays.copyOf(samplers, counts.length);
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            if (innerMap == null || samplers[word1] != null) {
+                continue;
+            }
+            int[] words = new int[innerMap.size()];
+            double[] weights = new double[innerMap.size()];
+            int i = 0;
+            for (int slot = 0; slot < innerMap.capacity(); slot++) {
+                if (innerMap.keyAt(slot) >= 0) {
+                    words[i] = innerMap.keyAt(slot);
+                    weights[i++] = innerMap.valueAt(slot);
+                }
+            }
+            samplers[word1] = new AliasSampler(words, weights);
+        }
     }
     
     public void makeGoodTuringCounts()
     {
-        // Generate good turing counts
-        for (String word1 : counts.keySet()) {
-            HashMap<String, Double> innerMap = counts.get(word1);
+        // Generate good turing counts (the raw counts are left alone)
+        goodTuringTable = new GoodTuringTable(numberOfBigramsWithCount, numTrainingBigrams);
+        gtUnigramCounts = new double[counts.length];
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            if (innerMap == null) {
+                continue;
+            }
             double unigramCount = 0;
-            for (String word2 : innerMap.keySet()) {
-                double count = innerMap.get(word2);
-                if (!numberOfBigramsWithCount.containsKey(count+1)) {
-                    numberOfBigramsWithCount.put(count+1, 0.0);
+            for (int slot = 0; slot < innerMap.capacity(); slot++) {
+                int word2 = innerMap.keyAt(slot);
+                if (word2 < 0) {
+                    continue;
                 }
-                // c* = (c+1) * N(c+1) / N(c)
-                double newCount = (count + 1)*(numberOfBigramsWithCount.get(count+1.0))/(numberOfBigramsWithCount.get(count));
-                innerMap.put(word2, newCount);
-                unigramCount += newCount;
+                unigramCount += goodTuringTable.count(innerMap.valueAt(slot));
             }
-            unigramCounts.put(word1, unigramCount);
+            gtUnigramCounts[word1] = unigramCount;
         }
         goodTuringCountsAvailable = true;
     }
     
+    // Writes the model in the binary format read by BinaryModel
+    public void save(String filename) throws IOException
+    {
+        NgramSorter sorter = new NgramSorter(2);
+        int[] bigram = new int[2];
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            for (int slot = 0; innerMap != null && slot < innerMap.capacity(); slot++) {
+                if (innerMap.keyAt(slot) >= 0) {
+                    bigram[0] = word1;
+                    bigram[1] = innerMap.keyAt(slot);
+                    sorter.add(bigram, innerMap.valueAt(slot));
+                }
+            }
+        }
+        ModelWriter writer = new ModelWriter(filename, 2, vocab, numberOfBigramsWithCount,
+                                             numTrainingBigrams, vocabSize);
+        sorter.writeTo(writer);
+        writer.close();
+    }
+    
+    // Writes the model in the ARPA format other LM tools read, smoothed
+    // with the given scheme (see BackoffModel)
+    public void writeArpa(String filename, BackoffModel.Scheme scheme) throws IOException
+    {
+        Ngram model = new Ngram(null, 2, vocab);
+        int[] bigram = new int[2];
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            for (int slot = 0; innerMap != null && slot < innerMap.capacity(); slot++) {
+                if (innerMap.keyAt(slot) >= 0) {
+                    bigram[0] = word1;
+                    bigram[1] = innerMap.keyAt(slot);
+                    model.ngc.insert(bigram, innerMap.valueAt(slot));
+                }
+            }
+        }
+        model.numTrainingNgrams = numTrainingBigrams;
+        model.numberOfNgramsWithCount = new HashMap<Double, Double>(numberOfBigramsWithCount);
+        model.vocabSize = vocabSize;
+        model.writeArpa(filename, scheme);
+    }
+    
     public void showCounts()
     {
-        for (String word1 : counts.keySet()) {
-            for (String word2 : counts.get(word1).keySet()) {
-                System.out.println(word1 + " " + word2 + ": " + counts.get(word1).get(word2));
+        for (int word1 = 0; word1 < counts.length; word1++) {
+            IntDoubleMap innerMap = counts[word1];
+            for (int slot = 0; innerMap != null && slot < innerMap.capacity(); slot++) {
+                int word2 = innerMap.keyAt(slot);
+                if (word2 >= 0) {
+                    System.out.println(vocab.word(word1) + " " + vocab.word(word2) + ": " + innerMap.valueAt(slot));
+                }
             }
         }
     }
 
     public String getSentence() {
-        String sentence = "";
-        String currentWord = START;
-        String nextWord = START;
-        //creates a sentence until a period is found
-        //(400 is jic it doesn't find a period)
-        while (!currentWord.equals(".") && sentence.length() <= 400) {
-            Set<String> keySet = counts.get(currentWord).keySet();
-            // rand is like a random dart thrown onto a dart board
-            // multiplied by totalCount for precision (since P(word) is small)
-            double rand = Math.random() * unigramCounts.get(currentWord);
-            Iterator<String> i = keySet.iterator();
-            //looking at all the words to see where the dart lands
-            while (i.hasNext() && rand >= 0) {
-                nextWord = i.next();
-                rand -= (double) counts.get(currentWord).get(nextWord);
-            }
-            currentWord = nextWord;
-            sentence += nextWord + " ";
-        }
-        return sentence;
+        return getSentence(new SplittableRandom());
+    }
+
+    // Generates a sentence; the same seeded random gives the same sentences
+    public String getSentence(SplittableRandom random) {
+        if (samplers == null) {
+            throw new IllegalStateException("Call freeze() after training to make the samplers");
+        }
+        StringBuilder sentence = new StringBuilder();
+        int currentWord = START;
+        //creates a sentence until a period, ? or ! is found
+        //(400 is jic it doesn't find one)
+        while (!vocab.endsSentence(currentWord) && sentence.length() <= 400) {
+            AliasSampler sampler = samplers[currentWord];
+            if (sampler == null) {
+                // Nothing ever followed this word
+                break;
+            }
+            currentWord = sampler.sample(random);
+            sentence.append(vocab.word(currentWord)).append(' ');
+        }
+        return sentence.toString();
     }
 
-    public double perplexity(Set<String> testSamples) {
-        float product = 1;
-        int wordCount = 0;
-        Stack<Double> products = new Stack<Double>();
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
+    public double perplexity(Iterable<String> testSamples) {
+        return evaluate(testSamples).perplexity();
+    }
 
-        // counting number of words in test set
-        for (String sample : testSamples) {
-            Matcher matcher = pattern.matcher(sample);
-            String previousWord = START;
-            while (matcher.find()) {
-                String match = matcher.group();
-                
-                products.push(goodTuringSmoothedProbability(previousWord, match));
-                wordCount++;
+    // Scores every bigram of the test set with good turing probabilities
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples) {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator();
+        SampleSource.Cursor cursor = Samples.cursor(testSamples);
+        while (cursor.next()) {
+            int previousWord = START;
+            for (int match : vocab.lookupAll(cursor.sample())) {
+                evaluator.addLogProbability(Math.log(goodTuringSmoothedProbability(previousWord, match)),
+                                            match == Vocabulary.UNKNOWN, cursor.times());
                 
                 // Update previousWord
                 previousWord = match;
             }
         }
-
-        // computing the necessary exponent
-        double power = 1.0 / wordCount;
-
-        // computing perplexity based on probabilities
-        while (!products.empty()) {
-            product *= Math.pow(products.pop(), power);
-        }
-        return 1 / product;
+        return evaluator;
     }
 }
\ No newline at end of file
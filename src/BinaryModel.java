@@ -0,0 +1,452 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A trained model read back from the file written by ModelWriter (see there
+ * for the layout). The file is memory-mapped and every lookup reads the
+ * mapped buffers directly, so loading costs nothing up front and several
+ * processes scoring with the same file share its pages.
+ *
+ * A MappedByteBuffer holds at most 2GB, so the file is mapped as segments
+ * of 1GB (see Segments) and every offset into it is a long.
+ *
+ * Contexts and n-grams are sorted by word id, so a query is a binary search
+ * for the context followed by a binary search among its n-grams. Only
+ * absolute ByteBuffer reads are used. A file written with count codes has
+ * its (small) codebook copied to the heap.
+ */
+public class BinaryModel
+{
+    public final int n; // (as in n-gram)
+    public final double numTrainingNgrams; // The size of the training set (# non-distinct words)
+    public final double numberOfNgramsWithCountOne; // N1, for unseen n-grams
+    public final double vocabSize; // Size of the vocabulary for add-one smoothing
+    public Tokenizer tokenizer = new CharTokenizer(); // Splits test samples into words
+
+    public static final int SEGMENT_BITS = 30; // Files are mapped in segments of 2^SEGMENT_BITS bytes
+
+    private final Segments buffer;
+    private final int numWords;
+    private final int numContexts;
+    private final int numNgrams;
+    private final long wordOffsets; // Byte offsets of the vocabulary section's parts
+    private final int wordTableSize;
+    private final long wordTable;
+    private final long wordChars;
+    private final long contexts; // Byte offset of the contexts section
+    private final int contextRecordSize;
+    private final long ngrams; // Byte offset of the n-grams section
+    private final int ngramRecordSize;
+    private final int countBits; // Bits per count code, 0 if counts are doubles
+    private double[] codeCount; // Count and Good-Turing count of each code
+    private double[] codeGTCount;
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2 || args.length > 4) {
+            System.out.println("To save a model, supply 3 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) an integer n > 0\n(3) Model file\n" +
+                               "(4) optionally, bits per count code (8 or 16)\n" +
+                               "To score with a saved model, supply 2 arguments:\n" +
+                               "(1) Model file\n(2) Test file, directory or glob");
+            System.exit(1);
+        }
+        try {
+            if (args.length >= 3) {
+                Ngram n = new Ngram(new Corpus(args[0], true), Integer.parseInt(args[1]));
+                n.train();
+                n.save(args[2], args.length == 4 ? Integer.parseInt(args[3]) : 0);
+                System.out.println("Saved " + args[2]);
+            } else {
+                BinaryModel model = load(args[0]);
+                Corpus testset = new Corpus(args[1], true);
+                System.out.println(model.evaluate(testset));
+            }
+        } catch (IOException ioe) {
+            System.out.println("IO error!");
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Memory-maps a model file written by ModelWriter
+    public static BinaryModel load(String filename) throws IOException
+    {
+        return load(filename, SEGMENT_BITS);
+    }
+
+    // Memory-maps a model file in segments of 2^segmentBits bytes
+    static BinaryModel load(String filename, int segmentBits) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long segmentSize = 1L << segmentBits;
+            MappedByteBuffer[] mapped = new MappedByteBuffer[(int) Math.max((size + segmentSize - 1) >>> segmentBits, 1)];
+            for (int i = 0; i < mapped.length; i++) {
+                // Each segment runs into the next by Segments.OVERLAP bytes, so
+                // no value read from it is split between two buffers. The
+                // mappings stay valid after the channel is closed
+                long position = (long) i << segmentBits;
+                long length = Math.min(segmentSize + Segments.OVERLAP, size - position);
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(length, 0));
+            }
+            return new BinaryModel(new Segments(mapped, segmentBits));
+        } finally {
+            file.close();
+        }
+    }
+
+    // A model read from one buffer (of at most 2GB)
+    public BinaryModel(ByteBuffer buffer) throws IOException
+    {
+        this(new Segments(new ByteBuffer[] {buffer}, 31));
+    }
+
+    private BinaryModel(Segments buffer) throws IOException
+    {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != ModelWriter.MAGIC) {
+            throw new IOException("Not a model file");
+        }
+        int version = buffer.getInt(4);
+        if (version != 1 && version != ModelWriter.VERSION) {
+            throw new IOException("Unsupported model file version " + version);
+        }
+        this.n = buffer.getInt(8);
+        this.numWords = buffer.getInt(12);
+        this.numContexts = buffer.getInt(16);
+        this.numNgrams = buffer.getInt(20);
+        this.numTrainingNgrams = buffer.getDouble(24);
+        this.numberOfNgramsWithCountOne = buffer.getDouble(32);
+        this.vocabSize = buffer.getDouble(40);
+        this.wordOffsets = buffer.getLong(48);
+        this.contexts = buffer.getLong(56);
+        this.ngrams = buffer.getLong(64);
+
+        this.wordTableSize = buffer.getInt(wordOffsets + 4L*(numWords+1));
+        this.wordTable = wordOffsets + 4L*(numWords+1) + 4;
+        this.wordChars = wordTable + 4L*wordTableSize;
+        this.contextRecordSize = ModelWriter.contextRecordSize(n);
+
+        this.countBits = version == 1 ? 0 : buffer.getInt(72);
+        this.ngramRecordSize = ModelWriter.ngramRecordSize(countBits);
+        if (countBits > 0) {
+            long codebook = buffer.getLong(76);
+            codeCount = new double[buffer.getInt(codebook)];
+            codeGTCount = new double[codeCount.length];
+            for (int code = 0; code < codeCount.length; code++) {
+                codeCount[code] = buffer.getDouble(codebook + 4 + 16*code);
+                codeGTCount[code] = buffer.getDouble(codebook + 4 + 16*code + 8);
+            }
+        }
+    }
+
+    // Hash used for the vocabulary table (shared with ModelWriter)
+    static int hash(CharSequence word)
+    {
+        return Vocabulary.hash(word, 0, word.length());
+    }
+
+    // Returns the id of word, or Vocabulary.UNKNOWN
+    public int lookup(String word)
+    {
+        return lookup(word, 0, word.length());
+    }
+
+    // Returns the id of the word text[start, end), or Vocabulary.UNKNOWN
+    public int lookup(CharSequence text, int start, int end)
+    {
+        int mask = wordTableSize - 1;
+        for (int slot = Vocabulary.hash(text, start, end) & mask; ; slot = (slot + 1) & mask) {
+            int id = buffer.getInt(wordTable + 4L*slot);
+            if (id == -1) {
+                return Vocabulary.UNKNOWN;
+            }
+            if (wordEquals(id, text, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    public String word(int id)
+    {
+        int start = buffer.getInt(wordOffsets + 4L*id);
+        int end = buffer.getInt(wordOffsets + 4L*(id+1));
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buffer.getChar(wordChars + 2L*(start + i));
+        }
+        return new String(chars);
+    }
+
+    private boolean wordEquals(int id, CharSequence text, int start, int end)
+    {
+        int first = buffer.getInt(wordOffsets + 4L*id);
+        int last = buffer.getInt(wordOffsets + 4L*(id+1));
+        if (last - first != end - start) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (buffer.getChar(wordChars + 2L*(first + i)) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Maps each word in a String[] n-gram to its id
+    public int[] lookupAll(String[] ngram)
+    {
+        int[] ids = new int[ngram.length];
+        for (int i = 0; i < ngram.length; i++) {
+            ids[i] = lookup(ngram[i]);
+        }
+        return ids;
+    }
+
+    // Byte offset of the context record for the first n-1 words of ngram, or -1
+    private long findContext(int[] ngram)
+    {
+        int low = 0;
+        int high = numContexts - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long record = contexts + (long) middle*contextRecordSize;
+            int compare = 0;
+            for (int i = 0; i < n-1 && compare == 0; i++) {
+                int word = buffer.getInt(record + 4*i);
+                if (word != ngram[i]) {
+                    compare = word < ngram[i] ? -1 : 1;
+                }
+            }
+            if (compare == 0) {
+                return record;
+            } else if (compare < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    // Byte offset of the n-gram record for ngram, or -1
+    private long findNgram(int[] ngram)
+    {
+        long context = findContext(ngram);
+        return context < 0 ? -1 : findNgram(context, ngram[n-1]);
+    }
+
+    // Byte offset of the record for word among the n-grams of the context
+    // record at byte offset context, or -1
+    private long findNgram(long context, int word)
+    {
+        long record = context + 4*(n-1) + 16;
+        int low = buffer.getInt(record);
+        int high = low + buffer.getInt(record + 4) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = ngrams + (long) middle*ngramRecordSize;
+            int foundWord = buffer.getInt(found);
+            if (foundWord == word) {
+                return found;
+            } else if (foundWord < word) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    // Count of the n-gram record at byte offset record
+    private double recordCount(long record)
+    {
+        return countBits == 0 ? buffer.getDouble(record + 4) : codeCount[code(record)];
+    }
+
+    // Good-Turing count of the n-gram record at byte offset record
+    private double recordGTCount(long record)
+    {
+        return countBits == 0 ? buffer.getDouble(record + 12) : codeGTCount[code(record)];
+    }
+
+    private int code(long record)
+    {
+        return countBits == 8 ? buffer.get(record + 4) & 0xFF : buffer.getShort(record + 4) & 0xFFFF;
+    }
+
+    // Count and Good-Turing count of the context record at byte offset context
+    private double contextCount(long context)
+    {
+        return buffer.getDouble(context + 4*(n-1));
+    }
+
+    private double contextGTCount(long context)
+    {
+        return buffer.getDouble(context + 4*(n-1) + 8);
+    }
+
+    public double count(int[] ngram)
+    {
+        long record = findNgram(ngram);
+        return record < 0 ? 0.0 : recordCount(record);
+    }
+
+    public double level1Count(int[] ngram)
+    {
+        long context = findContext(ngram);
+        return context < 0 ? 0.0 : contextCount(context);
+    }
+
+    public double gtcount(int[] ngram)
+    {
+        long record = findNgram(ngram);
+        return record < 0 ? 0.0 : recordGTCount(record);
+    }
+
+    public double level1GTCount(int[] ngram)
+    {
+        long context = findContext(ngram);
+        return context < 0 ? 0.0 : contextGTCount(context);
+    }
+
+    public double unsmoothedProbability(String[] words)
+    {
+        return unsmoothedProbability(lookupAll(words));
+    }
+
+    public double unsmoothedProbability(int[] words)
+    {
+        long context = findContext(words);
+        long record = context < 0 ? -1 : findNgram(context, words[n-1]);
+        if (record >= 0) {
+            return recordCount(record) / contextCount(context);
+        }
+        return 0.0;
+    }
+
+    public double addOneSmoothedProbability(String[] words)
+    {
+        return addOneSmoothedProbability(lookupAll(words));
+    }
+
+    public double addOneSmoothedProbability(int[] words)
+    {
+        // (count(Wn) + 1) / (count(Wn-1) + V)
+        long context = findContext(words);
+        if (context < 0) {
+            return 1.0 / vocabSize;
+        }
+        long record = findNgram(context, words[n-1]);
+        return ((record < 0 ? 0.0 : recordCount(record)) + 1.0) / (contextCount(context) + vocabSize);
+    }
+
+    public double goodTuringSmoothedProbability(String[] words)
+    {
+        return goodTuringSmoothedProbability(lookupAll(words));
+    }
+
+    public double goodTuringSmoothedProbability(int[] words)
+    {
+        // If this ngram has occurred, return good turing probability. The
+        // context is searched for once and gives both counts
+        long context = findContext(words);
+        long record = context < 0 ? -1 : findNgram(context, words[n-1]);
+        double gtcount = record < 0 ? 0.0 : recordGTCount(record);
+        if (gtcount > 0) {
+            return gtcount / contextGTCount(context);
+        }
+        // Otherwise, return N1/N as per book (page 101?)
+        return numberOfNgramsWithCountOne / numTrainingNgrams;
+    }
+
+    public double perplexity(Iterable<String> testSamples)
+    {
+        return evaluate(testSamples).perplexity();
+    }
+
+    // Scores every token of the test set with good turing probabilities
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples)
+    {
+        final PerplexityEvaluator evaluator = new PerplexityEvaluator();
+
+        final int[] nWords = new int[n];
+        Tokenizer.Sink scorer = new Tokenizer.Sink() {
+            public void token(CharSequence text, int start, int end)
+            {
+                // For each token, nWords is the ngram ending in it
+                for (int i = 0; i < n-1; i++) {
+                    nWords[i] = nWords[i+1];
+                }
+                nWords[n-1] = lookup(text, start, end);
+
+                // Find the probability of the n-gram
+                evaluator.add(goodTuringSmoothedProbability(nWords), nWords[n-1] == Vocabulary.UNKNOWN);
+            }
+        };
+        for (String testSample : testSamples) {
+            for (int i = 0; i < n; i++) {
+                nWords[i] = Vocabulary.START;
+            }
+            tokenizer.tokenize(testSample, scorer);
+        }
+        return evaluator;
+    }
+
+    /*
+     * The mapped file as consecutive buffers of 2^bits bytes each, read at
+     * long offsets. Each buffer but the last also holds the first OVERLAP
+     * bytes of the next, so a value of up to 8 bytes starting in a buffer
+     * is read whole from it.
+     */
+    private static class Segments
+    {
+        public static final int OVERLAP = 8; // Bytes of the longest value read
+
+        private final ByteBuffer[] buffers;
+        private final int bits;
+        private final long mask;
+
+        public Segments(ByteBuffer[] buffers, int bits)
+        {
+            this.buffers = buffers;
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+        }
+
+        public byte get(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].get((int) (offset & mask));
+        }
+
+        public char getChar(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].getChar((int) (offset & mask));
+        }
+
+        public short getShort(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].getShort((int) (offset & mask));
+        }
+
+        public int getInt(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].getInt((int) (offset & mask));
+        }
+
+        public long getLong(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].getLong((int) (offset & mask));
+        }
+
+        public double getDouble(long offset)
+        {
+            return buffers[(int) (offset >>> bits)].getDouble((int) (offset & mask));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * A range of a longer CharSequence seen as a CharSequence of its own, so a
+ * sentence can be handed on to the tokenizer without being copied into a
+ * String. One CharSpan is usually pointed at one range after another, so
+ * anything that keeps a sample must copy it with toString().
+ */
+public class CharSpan implements CharSequence
+{
+    private CharSequence text;
+    private int start;
+    private int end;
+
+    // Points the span at text[start, end)
+    public CharSpan set(CharSequence text, int start, int end)
+    {
+        this.text = text;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    public int length()
+    {
+        return end - start;
+    }
+
+    public char charAt(int index)
+    {
+        return text.charAt(start + index);
+    }
+
+    public CharSequence subSequence(int from, int to)
+    {
+        return text.subSequence(start + from, start + to);
+    }
+
+    public String toString()
+    {
+        return text.subSequence(start, end).toString();
+    }
+}
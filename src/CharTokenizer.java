@@ -0,0 +1,44 @@
+/*
+ * The default Tokenizer: a single pass over the chars that finds the same
+ * tokens as the regex ('?\w+|\p{Punct}) -- a run of word chars, optionally
+ * starting with an apostrophe, or a single punctuation char. Both classes
+ * are ASCII only, as in java.util.regex, and everything else is skipped.
+ */
+public class CharTokenizer implements Tokenizer
+{
+    public void tokenize(CharSequence text, Tokenizer.Sink sink)
+    {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            int start = i;
+            if (isWordChar(c) || (c == '\'' && i+1 < length && isWordChar(text.charAt(i+1)))) {
+                // '?\w+
+                i++;
+                while (i < length && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                sink.token(text, start, i);
+            } else if (isPunctuation(c)) {
+                // \p{Punct}
+                i++;
+                sink.token(text, start, i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // \w: [a-zA-Z_0-9]
+    public static boolean isWordChar(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // \p{Punct}: one of !"#$%&'()*+,-./:;<=>?@[\]^_`{|}~
+    public static boolean isPunctuation(char c)
+    {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+
+/*
+ * A bounded cache of recently used contexts (the first n-1 words of an
+ * n-gram) and the NgramStore.Context they lead to, so scoring text whose
+ * contexts keep coming back skips the walk down the store. Contexts that
+ * were never seen are cached too.
+ *
+ * The cache is set-associative, like a CPU cache: a context's hash picks a
+ * set of WAYS entries, and a miss replaces the least recently used entry of
+ * that set. Each entry's hash, last use and words sit next to each other in
+ * one int array sized up front, so a lookup is one hash and a scan of a few
+ * adjacent ints, allocates nothing and has no list to relink on every hit
+ * as a LinkedHashMap would.
+ *
+ * The cached handles read the store's counts as they are, but a context
+ * seen for the first time after it was cached as unseen would be missed,
+ * so the cache must be cleared whenever the store changes. Not
+ * thread-safe: FrozenNgram snapshots don't have one.
+ */
+public class ContextCache
+{
+    public static final int WAYS = 4; // Entries a context can be kept in
+
+    public final int capacity; // Most contexts kept at once (a multiple of WAYS)
+
+    private final int length; // Words in a context (n-1)
+    private final int stride; // Ints per entry: hash, last use, then the words
+    private final int setMask;
+    private final int[] entries;
+    private final NgramStore.Context[] contexts; // null for empty entries
+    private int clock; // Counts lookups, for the last use times
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Stands in for contexts that were never seen, since null marks empty entries
+    private static final NgramStore.Context UNSEEN = new NgramStore.Context() {
+        public double level1Count() { return 0.0; }
+        public double level1GTCount() { return 0.0; }
+        public double count(int word) { return 0.0; }
+        public double gtcount(int word) { return 0.0; }
+        public NgramStore.Context next(int word) { return null; }
+    };
+
+    // A cache of at least capacity contexts for an n-gram store
+    public ContextCache(int n, int capacity)
+    {
+        int sets = 1;
+        while (sets * WAYS < capacity) {
+            sets *= 2;
+        }
+        this.capacity = sets * WAYS;
+        this.length = n - 1;
+        this.stride = length + 2;
+        this.setMask = sets - 1;
+        this.entries = new int[this.capacity * stride];
+        this.contexts = new NgramStore.Context[this.capacity];
+    }
+
+    // The context made of the first n-1 words of ngram, or null if it was never seen
+    public NgramStore.Context context(NgramStore store, int[] ngram)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31*hash + ngram[i];
+        }
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+
+        if (++clock == Integer.MAX_VALUE) {
+            // Start the times over (0 marks empty entries)
+            clear();
+            clock = 1;
+        }
+        int first = (hash & setMask) * WAYS;
+        int oldest = first;
+        for (int entry = first; entry < first + WAYS; entry++) {
+            int start = entry * stride;
+            if (entries[start + 1] == 0) {
+                // Empty, and so are the rest of the set
+                oldest = entry;
+                break;
+            }
+            if (entries[start] == hash && matches(start + 2, ngram)) {
+                hits++;
+                entries[start + 1] = clock;
+                NgramStore.Context context = contexts[entry];
+                return context == UNSEEN ? null : context;
+            }
+            if (entries[start + 1] < entries[oldest * stride + 1]) {
+                oldest = entry;
+            }
+        }
+
+        misses++;
+        int start = oldest * stride;
+        if (entries[start + 1] != 0) {
+            evictions++;
+        }
+        NgramStore.Context context = store.context(ngram);
+        entries[start] = hash;
+        entries[start + 1] = clock;
+        System.arraycopy(ngram, 0, entries, start + 2, length);
+        contexts[oldest] = context == null ? UNSEEN : context;
+        return context;
+    }
+
+    private boolean matches(int start, int[] ngram)
+    {
+        for (int i = 0; i < length; i++) {
+            if (entries[start + i] != ngram[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Forgets every context (call whenever the store changes)
+    public void clear()
+    {
+        Arrays.fill(entries, 0);
+        Arrays.fill(contexts, null);
+        clock = 0;
+    }
+
+    // Number of contexts held
+    public int size()
+    {
+        int size = 0;
+        for (int entry = 0; entry < capacity; entry++) {
+            if (entries[entry * stride + 1] != 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long hits()
+    {
+        return hits;
+    }
+
+    public long misses()
+    {
+        return misses;
+    }
+
+    public long evictions()
+    {
+        return evictions;
+    }
+
+    // Fraction of lookups answered from the cache
+    public double hitRate()
+    {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    public String toString()
+    {
+        return "Context cache: " + hits + " hits, " + misses + " misses (hit rate " + hitRate() + "), " +
+               evictions + " evictions, " + size() + " of " + capacity + " entries";
+    }
+}
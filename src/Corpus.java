@@ -0,0 +1,457 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * The sentences of every shard of a corpus: a single file, every file under
+ * a directory, or the files matching a glob such as "data/shard-*.gz" or
+ * "data/**.txt" (* stays within a directory, ** crosses them). Shards are
+ * read in the order of their paths.
+ *
+ * Each shard may be gzipped (found from its first two bytes, whatever its
+ * name) and is either the DOC/TEXT XML layout that StreamingNgramParser reads
+ * or plain text with one sentence per line. Files named .xml or .txt (before
+ * any .gz) are taken at their word; others are XML if they start with '<'.
+ *
+ * Each pass starts reader threads, each taking the next unread shard and
+ * handing its sentences on in batches through a bounded queue, so reading
+ * and decompressing overlap with whatever is counting the sentences and at
+ * most a few batches per reader are held in memory. A batch keeps its
+ * sentences' chars end to end in one buffer, and a cursor() hands each one
+ * on as a view of it (see CharSpan), so training encodes the words without a
+ * String being made per sentence; iterator() copies them into Strings.
+ * With more than one reader, the sentences of different shards are
+ * interleaved in no fixed order; counts don't depend on the order, but
+ * vocabulary ids do. Readers are daemon threads. A pass that won't be read
+ * to the end should be closed (cursor() returns a Pass and iterator() a
+ * Sentences, both Closeable), which stops its readers; otherwise they wait
+ * on the queue until the JVM exits.
+ */
+public class Corpus extends Samples
+{
+    public static final int BATCH_SIZE = 1024; // Sentences handed on at a time
+    public static final int BUFFER_SIZE = 1 << 16; // Bytes read from a shard at a time
+    private static final long OFFER_WAIT_MS = 100; // How often a reader waiting on the queue checks for close()
+
+    public ArrayList<Path> shards; // Every file to read, in order
+    public boolean useUpperCase;
+    public int readers; // Threads reading shards at once
+
+    public static void main(String[] args)
+    {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("You must supply 1 or 2 arguments:\n(1) Corpus file, directory or glob\n" +
+                               "(2) Reader threads (optional)");
+            System.exit(1);
+        }
+
+        try {
+            Corpus corpus = args.length == 2 ? new Corpus(args[0], true, Integer.parseInt(args[1]))
+                                             : new Corpus(args[0], true);
+            long start = System.nanoTime();
+            long sentences = 0;
+            long chars = 0;
+            Pass pass = corpus.cursor();
+            while (pass.next()) {
+                sentences++;
+                chars += pass.sample().length();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(corpus.shards.size() + " shards, " + sentences + " sentences, " +
+                               chars + " chars in " + seconds + "s with " + corpus.readers + " readers");
+        } catch (IOException e) {
+            System.out.println("IO error!");
+            e.printStackTrace();
+        }
+    }
+
+    public Corpus(String path, boolean useUpperCase) throws IOException
+    {
+        this(path, useUpperCase, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Corpus(String path, boolean useUpperCase, int readers) throws IOException
+    {
+        if (readers < 1) {
+            throw new IllegalArgumentException("Need at least one reader, not " + readers);
+        }
+        this.shards = find(path);
+        if (shards.isEmpty()) {
+            throw new FileNotFoundException("No corpus files match " + path);
+        }
+        this.useUpperCase = useUpperCase;
+        this.readers = Math.min(readers, shards.size());
+    }
+
+    // For mains: the corpus at path with case kept, or if it can't be found,
+    // exits after saying why
+    public static Corpus openOrExit(String path)
+    {
+        try {
+            return new Corpus(path, true);
+        } catch (IOException ioe) {
+            System.out.println("IO error!");
+            ioe.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    // The files path names: itself, every file under it, or those matching it as a glob
+    public static ArrayList<Path> find(String path) throws IOException
+    {
+        final ArrayList<Path> found = new ArrayList<Path>();
+        Path base;
+        final PathMatcher matcher;
+        int glob = firstGlobChar(path);
+        if (glob < 0) {
+            base = Paths.get(path);
+            matcher = null;
+            if (!Files.isDirectory(base)) {
+                if (!Files.exists(base)) {
+                    throw new FileNotFoundException(path);
+                }
+                found.add(base);
+                return found;
+            }
+        } else {
+            // Walk from the deepest directory above the first glob character
+            int slash = path.lastIndexOf('/', glob);
+            base = Paths.get(slash < 0 ? "." : path.substring(0, slash + 1));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.substring(slash + 1));
+            if (!Files.isDirectory(base)) {
+                return found;
+            }
+        }
+
+        final Path root = base;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attributes)
+            {
+                if (attributes.isRegularFile() && !file.getFileName().toString().startsWith(".") &&
+                    (matcher == null || matcher.matches(root.relativize(file)))) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(found);
+        return found;
+    }
+
+    private static int firstGlobChar(String path)
+    {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Pass cursor()
+    {
+        return new Pass();
+    }
+
+    public Sentences iterator()
+    {
+        return new Sentences();
+    }
+
+    // Opens a shard, decompressed if it starts with the gzip magic number
+    public static InputStream open(Path shard) throws IOException
+    {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(shard.toFile()), BUFFER_SIZE);
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    // Whether a shard, opened with open(), holds XML rather than a sentence per line
+    private static boolean isXml(Path shard, InputStream in) throws IOException
+    {
+        String name = shard.getFileName().toString().toLowerCase();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        if (name.endsWith(".xml")) {
+            return true;
+        }
+        if (name.endsWith(".txt")) {
+            return false;
+        }
+        in.mark(BUFFER_SIZE);
+        int b = in.read();
+        while (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == 0xef || b == 0xbb || b == 0xbf) {
+            b = in.read(); // whitespace and a UTF-8 byte order mark
+        }
+        in.reset();
+        return b == '<';
+    }
+
+    // Sentences handed on by a reader at once: their chars end to end in one
+    // buffer, rather than a String each
+    private static class Batch
+    {
+        final StringBuilder chars = new StringBuilder();
+        final int[] ends = new int[BATCH_SIZE]; // Where each sentence stops in chars
+        int size;
+
+        // Copies text[start, end) in as the next sentence, lowercased if asked
+        void add(CharSequence text, int start, int end, boolean lowerCase)
+        {
+            if (lowerCase) {
+                for (int i = start; i < end; i++) {
+                    chars.append(Character.toLowerCase(text.charAt(i)));
+                }
+            } else {
+                chars.append(text, start, end);
+            }
+            ends[size++] = chars.length();
+        }
+
+        int start(int sentence)
+        {
+            return sentence == 0 ? 0 : ends[sentence - 1];
+        }
+    }
+
+    // The sentences of a Pass as Strings, for for-each loops
+    public class Sentences implements Iterator<String>, Closeable
+    {
+        private final Pass pass = new Pass();
+        private boolean ready; // pass is on a sentence next() hasn't returned yet
+
+        public boolean hasNext()
+        {
+            if (!ready) {
+                ready = pass.next();
+            }
+            return ready;
+        }
+
+        public String next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return pass.sample().toString();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        // Stops the readers, for a pass that won't be read to the end
+        public void close()
+        {
+            ready = false;
+            pass.close();
+        }
+    }
+
+    // One read through every shard, with its own readers and queue
+    public class Pass implements SampleSource.Cursor, Closeable
+    {
+        private final Batch done = new Batch(); // A reader has finished
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(readers * 4);
+        private final AtomicInteger nextShard = new AtomicInteger();
+        private volatile IOException failure; // The first reader error, thrown to the consumer
+        private volatile boolean cancelled; // close() was called, so readers stop
+
+        private Batch batch = new Batch();
+        private int position = -1; // Which sentence of batch sample() is
+        private int running = readers; // Readers that haven't sent done
+        private final CharSpan sample = new CharSpan();
+
+        Pass()
+        {
+            for (int i = 0; i < readers; i++) {
+                Thread reader = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        read();
+                    }
+                }, "corpus-reader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        public boolean next()
+        {
+            if (cancelled) {
+                return false;
+            }
+            position++;
+            while (position >= batch.size) {
+                if (running == 0) {
+                    return false;
+                }
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while reading the corpus", e);
+                }
+                position = 0;
+                if (batch == done) {
+                    running--;
+                    if (failure != null) {
+                        close();
+                        throw new UncheckedIOException(failure);
+                    }
+                }
+            }
+            sample.set(batch.chars, batch.start(position), batch.ends[position]);
+            return true;
+        }
+
+        public CharSequence sample()
+        {
+            return sample;
+        }
+
+        public long times()
+        {
+            return 1;
+        }
+
+        // Stops the readers, for a pass that won't be read to the end
+        public void close()
+        {
+            cancelled = true;
+            queue.clear();
+        }
+
+        // Reads shards until there are none left (or one fails, or the pass
+        // is closed), then sends done however it stopped
+        private void read()
+        {
+            boolean interrupted = false;
+            try {
+                int shard;
+                while (failure == null && !cancelled && (shard = nextShard.getAndIncrement()) < shards.size()) {
+                    readShard(shards.get(shard));
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("A corpus reader was interrupted");
+            } catch (RuntimeException e) {
+                failure = new IOException("A corpus reader failed", e);
+            } finally {
+                while (!cancelled) {
+                    try {
+                        if (queue.offer(done, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true; // Still owe hasNext() the done
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Queues a batch, waiting while the queue is full, unless the pass is
+        // closed first
+        private void send(Batch sentences) throws InterruptedException
+        {
+            while (!cancelled && !queue.offer(sentences, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                // The consumer is behind
+            }
+        }
+
+        private void readShard(Path shard) throws IOException, InterruptedException
+        {
+            Batch sentences = new Batch();
+            InputStream in = open(shard);
+            try {
+                if (isXml(shard, in)) {
+                    SampleSource.Cursor xml = StreamingNgramParser.cursor(in, useUpperCase);
+                    while (!cancelled && xml.next()) {
+                        CharSequence sentence = xml.sample(); // Already lowercased
+                        sentences = add(sentences, sentence, 0, sentence.length(), false);
+                    }
+                } else {
+                    // Lines are copied from the decoded chars into the batch,
+                    // with no String for each
+                    Reader text = new InputStreamReader(in, StandardCharsets.UTF_8);
+                    char[] chars = new char[BUFFER_SIZE];
+                    StringBuilder line = new StringBuilder(); // The line read so far
+                    int read;
+                    while (!cancelled && (read = text.read(chars)) > 0) {
+                        int from = 0;
+                        for (int i = 0; i < read; i++) {
+                            if (chars[i] == '\n' || chars[i] == '\r') {
+                                line.append(chars, from, i - from);
+                                sentences = addLine(sentences, line);
+                                line.setLength(0);
+                                from = i + 1;
+                            }
+                        }
+                        line.append(chars, from, read - from);
+                    }
+                    sentences = addLine(sentences, line);
+                }
+            } catch (IOException e) {
+                throw new IOException("Can't read " + shard, e);
+            } finally {
+                in.close();
+            }
+            if (sentences.size > 0) {
+                send(sentences);
+            }
+        }
+
+        // Adds a line of a text shard as a sentence, trimmed as by String.trim(),
+        // unless there is nothing left of it
+        private Batch addLine(Batch sentences, CharSequence line) throws InterruptedException
+        {
+            int start = 0;
+            int end = line.length();
+            while (start < end && line.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            return start < end ? add(sentences, line, start, end, !useUpperCase) : sentences;
+        }
+
+        // Adds text[start, end) to the batch as a sentence, handing the batch
+        // on once it is full
+        private Batch add(Batch sentences, CharSequence text, int start, int end, boolean lowerCase)
+            throws InterruptedException
+        {
+            sentences.add(text, start, end, lowerCase);
+            if (sentences.size == BATCH_SIZE) {
+                send(sentences);
+                return new Batch();
+            }
+            return sentences;
+        }
+    }
+}
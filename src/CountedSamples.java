@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+
+/*
+ * Samples held in memory, each with its number of occurrences, e.g. a corpus
+ * that was already counted or a test set of repeated queries. Adding the
+ * sample that was added last just raises its count, so runs of a repeated
+ * sentence take one entry; no other duplicates are looked for.
+ */
+public class CountedSamples extends Samples
+{
+    public ArrayList<String> samples = new ArrayList<String>(); // Distinct runs, in order
+    public long[] times = new long[16]; // times[i] is the occurrences of samples.get(i)
+    public long total; // Occurrences of all samples
+
+    public void add(String sample)
+    {
+        add(sample, 1);
+    }
+
+    public void add(String sample, long times)
+    {
+        if (times < 1) {
+            throw new IllegalArgumentException("A sample occurs at least once, not " + times + " times");
+        }
+        int last = samples.size() - 1;
+        if (last >= 0 && samples.get(last).equals(sample)) {
+            this.times[last] += times;
+        } else {
+            if (samples.size() == this.times.length) {
+                long[] bigger = new long[this.times.length * 2];
+                System.arraycopy(this.times, 0, bigger, 0, this.times.length);
+                this.times = bigger;
+            }
+            this.times[samples.size()] = times;
+            samples.add(sample);
+        }
+        total += times;
+    }
+
+    public int size()
+    {
+        return samples.size();
+    }
+
+    public SampleSource.Cursor cursor()
+    {
+        return new SampleSource.Cursor() {
+            private int i = -1;
+
+            public boolean next()
+            {
+                if (i < samples.size()) {
+                    i++;
+                }
+                return i < samples.size();
+            }
+
+            public String sample()
+            {
+                return samples.get(i);
+            }
+
+            public long times()
+            {
+                return times[i];
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Drops repeats of sentences already seen, as an explicit stage in front of a
+ * model: new Ngram(new DedupSamples(corpus, 10000000), 3). Counts are only
+ * skewed this way on purpose; by default every occurrence is counted.
+ *
+ * Rather than the sentences, a table of their 64-bit FNV-1a hashes is kept,
+ * 16 to 32 bytes per remembered sentence however long it is, and never more
+ * than maxRemembered of them. The table starts small and doubles as it fills,
+ * so a generous maxRemembered costs nothing until that many are seen. Once the table is full, sentences not seen so far
+ * are passed through without being remembered, so repeats of them are kept
+ * (see unremembered). Two different sentences are taken for one only if
+ * their hashes collide, about a one in 10^7 chance over 10^6 sentences.
+ *
+ * Each pass (cursor() or iterator()) starts with an empty table; the
+ * statistics below are those of the latest pass.
+ */
+public class DedupSamples extends Samples
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int INITIAL_SLOTS = 1 << 10; // Table size at the start of a pass
+
+    public Iterable<String> samples; // Where the sentences come from
+    public int maxRemembered; // Most distinct sentences the table holds
+
+    public long kept; // Sentences passed on
+    public long dropped; // Occurrences dropped as repeats
+    public long unremembered; // Sentences passed on after the table filled up
+
+    public DedupSamples(Iterable<String> samples, int maxRemembered)
+    {
+        if (maxRemembered < 1 || maxRemembered > (1 << 28)) {
+            throw new IllegalArgumentException("Can't remember " + maxRemembered + " sentences");
+        }
+        this.samples = samples;
+        this.maxRemembered = maxRemembered;
+    }
+
+    public SampleSource.Cursor cursor()
+    {
+        kept = 0;
+        dropped = 0;
+        unremembered = 0;
+        return new Dedup(Samples.cursor(samples));
+    }
+
+    // 64-bit FNV-1a over the sentence's chars, never 0 (which marks an empty slot)
+    static long hash(CharSequence sample)
+    {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < sample.length(); i++) {
+            hash = (hash ^ sample.charAt(i)) * FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private class Dedup implements SampleSource.Cursor
+    {
+        private final SampleSource.Cursor cursor;
+        private long[] seen; // Open addressing, at most half full
+        private int remembered;
+
+        Dedup(SampleSource.Cursor cursor)
+        {
+            this.cursor = cursor;
+            // Doubling stops before Integer.highestOneBit(maxRemembered) * 4
+            // slots, which holds maxRemembered at most half full
+            this.seen = new long[Math.min(INITIAL_SLOTS, Integer.highestOneBit(maxRemembered) * 4)];
+        }
+
+        public boolean next()
+        {
+            while (cursor.next()) {
+                if (remember(hash(cursor.sample()))) {
+                    dropped += cursor.times() - 1;
+                    kept++;
+                    return true;
+                }
+                dropped += cursor.times();
+            }
+            return false;
+        }
+
+        public CharSequence sample()
+        {
+            return cursor.sample();
+        }
+
+        public long times()
+        {
+            return 1;
+        }
+
+        // False if hash was seen before
+        private boolean remember(long hash)
+        {
+            int mask = seen.length - 1;
+            int slot = slot(hash) & mask;
+            while (seen[slot] != 0) {
+                if (seen[slot] == hash) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (remembered == maxRemembered) {
+                unremembered++;
+            } else {
+                seen[slot] = hash;
+                remembered++;
+                if (remembered * 2 > seen.length) {
+                    grow();
+                }
+            }
+            return true;
+        }
+
+        // Doubles the table, putting every hash back in its new slot
+        private void grow()
+        {
+            long[] old = seen;
+            seen = new long[old.length * 2];
+            int mask = seen.length - 1;
+            for (long hash : old) {
+                if (hash != 0) {
+                    int slot = slot(hash) & mask;
+                    while (seen[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    seen[slot] = hash;
+                }
+            }
+        }
+
+        private int slot(long hash)
+        {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Counts the n-grams of a corpus whose distinct n-grams don't fit in
+ * memory, by sorting on disk the way KenLM's lmplz does. Only the
+ * vocabulary and one sort buffer stay in memory.
+ *
+ * The n-gram windows of each sample go into an NgramSorter of runSize
+ * n-grams. Whenever it fills up it is sorted, repeats are merged and the
+ * result is spilled to a temporary run file. finish() k-way merges the runs
+ * (a heap holding each run's next n-gram) into one sorted file of distinct
+ * n-grams and their counts, working out the count-of-counts on the way.
+ * Each open run holds a file descriptor and a read buffer, so at most fanIn
+ * runs are merged at once: with more, groups of them are first merged into
+ * longer runs, pass after pass, until the rest fit in one merge.
+ * That file streams back in sorted order, which is the order ModelWriter
+ * needs, so save() writes a model without its counts ever being in memory.
+ *
+ * Run and counts file records: n word ids (ints), then the count (double).
+ */
+public class ExternalCounter
+{
+    public static final long DEFAULT_MEMORY = 64L << 20; // Bytes for the sort buffer
+    public static final int DEFAULT_IO_BUFFER = 1 << 16; // Bytes buffered per file stream
+    public static final int DEFAULT_FAN_IN = 64; // Runs merged at once
+
+    public final int n; // (as in n-gram)
+    public final Vocabulary vocab; // Maps words to the ids the n-grams are written with
+    public final int runSize; // N-grams sorted in memory before a run is spilled
+    public int readBufferSize = DEFAULT_IO_BUFFER; // Per file read, so per run while merging
+    public int writeBufferSize = DEFAULT_IO_BUFFER; // Per file written
+    public int fanIn = DEFAULT_FAN_IN; // Most runs open at once while merging (at least 2)
+    public File tempDir; // Where the temporary files go (null for the system default)
+
+    // Known once finish() has been called
+    public double vocabSize; // Size of the vocabulary for add-one smoothing
+    public double numTrainingNgrams; // The size of the training set (# non-distinct words)
+    public HashMap<Double, Double> numberOfNgramsWithCount; // The number of ngrams that occur x times
+    public long numNgrams; // Number of distinct n-grams
+
+    private final NgramSorter buffer;
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private File counts; // The merged counts, made by finish()
+
+    public static void main(String[] args)
+    {
+        if (args.length < 3 || args.length > 5) {
+            System.out.println("You must supply 3 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) an integer n > 0\n(3) Model file\n" +
+                               "and optionally (4) the sort buffer size in MB and " +
+                               "(5) the file buffer size in KB");
+            System.exit(1);
+        }
+        long memory = args.length > 3 ? Long.parseLong(args[3]) << 20 : DEFAULT_MEMORY;
+        ExternalCounter counter = new ExternalCounter(Integer.parseInt(args[1]), new Vocabulary(), memory);
+        if (args.length > 4) {
+            counter.readBufferSize = Integer.parseInt(args[4]) << 10;
+            counter.writeBufferSize = counter.readBufferSize;
+        }
+        try {
+            counter.count(new Corpus(args[0], true));
+            int numRuns = counter.runs.size();
+            counter.finish();
+            counter.save(args[2]);
+            counter.close();
+            System.out.println("Counted " + counter.numNgrams + " distinct n-grams in " + numRuns +
+                               " runs of up to " + counter.runSize);
+            System.out.println("Saved " + args[2]);
+        } catch (IOException ioe) {
+            System.out.println("IO error!");
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Sorts memory bytes worth of n-grams at a time
+    public ExternalCounter(int n, Vocabulary vocab, long memory)
+    {
+        this.n = n;
+        this.vocab = vocab;
+        this.runSize = (int) Math.min(Math.max(memory / bytesPerNgram(n), 1024), Integer.MAX_VALUE / n);
+        this.buffer = new NgramSorter(n, runSize);
+    }
+
+    // Memory an n-gram takes while a run is sorted: its words and count,
+    // their sorted copy and two ints of merge sort indexes
+    public static long bytesPerNgram(int n)
+    {
+        return 2 * (4L*n + 8) + 8;
+    }
+
+    public void count(Iterable<String> samples) throws IOException
+    {
+        SampleSource.Cursor cursor = Samples.cursor(samples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times());
+        }
+    }
+
+    // Adds the n-grams of sample (see Ngram for the START padding)
+    public void countSample(String sample) throws IOException
+    {
+        countSample(sample, 1);
+    }
+
+    // Adds times occurrences of sample's n-grams (see SampleSource)
+    private void countSample(CharSequence sample, long times) throws IOException
+    {
+        if (counts != null) {
+            throw new IllegalStateException("finish() has already been called");
+        }
+        int[] nWords = new int[n];
+        for (int i = 0; i < n; i++) {
+            nWords[i] = Vocabulary.START;
+        }
+        for (int word : vocab.encode(sample)) {
+            for (int i = 0; i < n-1; i++) {
+                nWords[i] = nWords[i+1];
+            }
+            nWords[n-1] = word;
+            numTrainingNgrams += times;
+
+            if (buffer.size() == runSize) {
+                spill();
+            }
+            buffer.add(nWords, times);
+        }
+    }
+
+    // Sorts the buffer and writes it out as a new run
+    private void spill() throws IOException
+    {
+        buffer.sort();
+        File run = File.createTempFile("run", ".tmp", tempDir);
+        runs.add(run);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), writeBufferSize));
+        try {
+            int[] ngram = new int[n];
+            for (int i = 0; i < buffer.size(); i++) {
+                buffer.get(i, ngram);
+                write(out, ngram, buffer.count(i));
+            }
+        } finally {
+            out.close();
+        }
+        buffer.clear();
+    }
+
+    private void write(DataOutputStream out, int[] ngram, double count) throws IOException
+    {
+        for (int word : ngram) {
+            out.writeInt(word);
+        }
+        out.writeDouble(count);
+    }
+
+    // Call once every sample is counted: merges the runs into the final
+    // counts and count-of-counts, and deletes them
+    public void finish() throws IOException
+    {
+        if (counts != null) {
+            throw new IllegalStateException("finish() has already been called");
+        }
+        if (fanIn < 2) {
+            throw new IllegalStateException("Merging needs a fan-in of at least 2, not " + fanIn);
+        }
+        if (buffer.size() > 0 || runs.isEmpty()) {
+            spill();
+        }
+        vocabSize = vocab.size() - 1; // everything but START
+        numberOfNgramsWithCount = new HashMap<Double, Double>();
+
+        ArrayList<File> merged = new ArrayList<File>(); // This pass's longer runs
+        try {
+            while (runs.size() > fanIn) {
+                for (int start = 0; start < runs.size(); start += fanIn) {
+                    List<File> group = runs.subList(start, Math.min(start + fanIn, runs.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    File run = File.createTempFile("run", ".tmp", tempDir);
+                    merged.add(run);
+                    merge(group, run, false);
+                    for (File done : group) {
+                        done.delete();
+                    }
+                }
+                runs.clear();
+                runs.addAll(merged);
+                merged.clear();
+            }
+            counts = File.createTempFile("counts", ".tmp", tempDir);
+            merge(runs, counts, true);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            for (File run : merged) {
+                run.delete();
+            }
+        }
+    }
+
+    // Merges sorted runs into output, summing the counts of an n-gram that
+    // is in more than one. The final merge (last) also works out the
+    // count-of-counts
+    private void merge(List<File> inputs, File output, boolean last) throws IOException
+    {
+        PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(inputs.size(), new Comparator<RunReader>() {
+            public int compare(RunReader a, RunReader b)
+            {
+                return compareNgrams(a.ngram, b.ngram);
+            }
+        });
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), writeBufferSize));
+        try {
+            for (File run : inputs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    heap.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            // Runs are sorted and have no repeats, so equal n-grams from
+            // different runs come off the heap one after another
+            int[] ngram = new int[n];
+            double count = 0;
+            while (!heap.isEmpty()) {
+                RunReader reader = heap.poll();
+                if (count > 0 && compareNgrams(reader.ngram, ngram) != 0) {
+                    finishNgram(out, ngram, count, last);
+                    count = 0;
+                }
+                System.arraycopy(reader.ngram, 0, ngram, 0, n);
+                count += reader.count;
+                if (reader.next()) {
+                    heap.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            if (count > 0) {
+                finishNgram(out, ngram, count, last);
+            }
+        } finally {
+            out.close();
+            for (RunReader reader : heap) {
+                reader.close();
+            }
+        }
+    }
+
+    // Writes a merged n-gram and, if it is final, counts it
+    private void finishNgram(DataOutputStream out, int[] ngram, double count, boolean last) throws IOException
+    {
+        write(out, ngram, count);
+        if (!last) {
+            return;
+        }
+        numNgrams++;
+        Double number = numberOfNgramsWithCount.get(count);
+        numberOfNgramsWithCount.put(count, number == null ? 1.0 : number + 1.0);
+    }
+
+    private int compareNgrams(int[] a, int[] b)
+    {
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i]) {
+                return a[i] < b[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    // Streams the final counts to visitor in sorted order (needs finish())
+    public void forEachNgram(NgramStore.Visitor visitor) throws IOException
+    {
+        if (counts == null) {
+            throw new IllegalStateException("Call finish() after counting");
+        }
+        RunReader reader = new RunReader(counts);
+        try {
+            while (reader.next()) {
+                visitor.visit(reader.ngram, reader.count);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Writes the model in the binary format read by BinaryModel
+    public void save(String filename) throws IOException
+    {
+        save(filename, 0);
+    }
+
+    // Same, with counts stored as codes of countBits bits (see ModelWriter)
+    public void save(String filename, int countBits) throws IOException
+    {
+        if (counts == null) {
+            throw new IllegalStateException("Call finish() after counting");
+        }
+        ModelWriter writer = new ModelWriter(filename, n, vocab, numberOfNgramsWithCount,
+                                             numTrainingNgrams, vocabSize, countBits);
+        RunReader reader = new RunReader(counts);
+        try {
+            while (reader.next()) {
+                writer.add(reader.ngram, reader.count);
+            }
+        } finally {
+            reader.close();
+        }
+        writer.close();
+    }
+
+    // Loads the final counts into an in-memory model, for when they do fit
+    public Ngram toNgram(NgramStore.Type storeType) throws IOException
+    {
+        final Ngram model = new Ngram(null, n, vocab, storeType);
+        forEachNgram(new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                model.ngc.insert(ngram, count);
+            }
+        });
+        model.numTrainingNgrams = numTrainingNgrams;
+        model.numberOfNgramsWithCount = new HashMap<Double, Double>(numberOfNgramsWithCount);
+        model.vocabSize = vocabSize;
+        return model;
+    }
+
+    // Deletes the temporary files
+    public void close()
+    {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        if (counts != null) {
+            counts.delete();
+        }
+    }
+
+    // Reads the records of a run or counts file one at a time
+    private class RunReader
+    {
+        final int[] ngram = new int[n];
+        double count;
+        private final DataInputStream in;
+        private long remaining; // Records not read yet
+
+        RunReader(File file) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), readBufferSize));
+            this.remaining = file.length() / (4L*n + 8);
+        }
+
+        // Reads the next record; false at the end of the file
+        boolean next() throws IOException
+        {
+            if (remaining == 0) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                ngram[i] = in.readInt();
+            }
+            count = in.readDouble();
+            remaining--;
+            return true;
+        }
+
+        void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
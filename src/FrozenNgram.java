@@ -0,0 +1,104 @@
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+/*
+ * A read-only snapshot of a trained Ngram that any number of threads can
+ * query at once, without locks.
+ *
+ * The snapshot owns a private copy of the counts, the vocabulary and the
+ * smoothing state, frozen before the constructor returns and reachable only
+ * through final fields, so it is safely published to every thread that sees
+ * the FrozenNgram reference and later update() calls on the source model
+ * can't affect it. Every method below only reads that copy.
+ */
+public final class FrozenNgram
+{
+    public final int n; // (as in n-gram)
+    private final Ngram model; // The private, frozen copy
+
+    // Copies model's counts (model must not be trained at the same time)
+    public FrozenNgram(Ngram model)
+    {
+        Ngram copy = new Ngram(null, model.n, new Vocabulary(model.vocab.tokenizer), model.storeType);
+        if (model.metrics.enabled) {
+            // Its own metrics, so its gauges report its own store
+            copy.setMetrics(model.metrics.metrics, model.metrics.name + ".snapshot");
+        }
+        copy.merge(model);
+        copy.numberOfNgramsWithCount = new HashMap<Double, Double>(model.numberOfNgramsWithCount);
+        copy.vocabSize = model.vocabSize;
+        copy.freeze();
+        if (model.kneserNey != null) {
+            copy.freezeKneserNey();
+        }
+        this.n = model.n;
+        this.model = copy;
+    }
+
+    // Returns the id of word, or Vocabulary.UNKNOWN
+    public int lookup(String word)
+    {
+        return model.vocab.lookup(word);
+    }
+
+    public double unsmoothedProbability(String[] words)
+    {
+        return model.unsmoothedProbability(words);
+    }
+
+    public double unsmoothedProbability(int[] words)
+    {
+        return model.unsmoothedProbability(words);
+    }
+
+    public double addOneSmoothedProbability(String[] words)
+    {
+        return model.addOneSmoothedProbability(words);
+    }
+
+    public double addOneSmoothedProbability(int[] words)
+    {
+        return model.addOneSmoothedProbability(words);
+    }
+
+    public double goodTuringSmoothedProbability(String[] words)
+    {
+        return model.goodTuringSmoothedProbability(words);
+    }
+
+    public double goodTuringSmoothedProbability(int[] words)
+    {
+        return model.goodTuringSmoothedProbability(words);
+    }
+
+    public double kneserNeySmoothedProbability(String[] words)
+    {
+        return model.kneserNeySmoothedProbability(words);
+    }
+
+    public double kneserNeySmoothedProbability(int[] words)
+    {
+        return model.kneserNeySmoothedProbability(words);
+    }
+
+    public double[] scoreSentences(String[] sentences, double[][] tokenLogProbabilities)
+    {
+        return model.scoreSentences(sentences, tokenLogProbabilities);
+    }
+
+    public double perplexity(Iterable<String> testSamples)
+    {
+        return model.perplexity(testSamples);
+    }
+
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples)
+    {
+        return model.evaluate(testSamples);
+    }
+
+    // Each thread should use its own random
+    public String getSentence(SplittableRandom random)
+    {
+        return model.getSentence(random);
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Good-Turing adjusted counts, c* = (c+1) * N(c+1) / N(c), worked out once
+ * for every count that occurs so that smoothing at query time is an array
+ * read. Counts below DENSE_LIMIT are looked up directly; the few larger ones
+ * are kept sorted and binary searched. Never modified after construction.
+ */
+public class GoodTuringTable
+{
+    public static final int DENSE_LIMIT = 1 << 16;
+
+    private final double[] dense; // dense[c] = c* for c < dense.length
+    private final double[] sparseCounts; // counts >= dense.length that occur, ascending
+    private final double[] sparseAdjusted; // c* for each of sparseCounts
+    public final double numberWithCountOne; // N1
+    public final double numTraining; // N, the size of the training set
+    public final double unseenProbability; // N1/N as per book (page 101?)
+
+    public GoodTuringTable(HashMap<Double, Double> numberWithCount, double numTraining)
+    {
+        double maxCount = 0;
+        int numLarge = 0;
+        for (double c : numberWithCount.keySet()) {
+            if (numberWithCount.get(c) > 0) {
+                maxCount = Math.max(maxCount, c);
+                if (c >= DENSE_LIMIT) {
+                    numLarge++;
+                }
+            }
+        }
+
+        dense = new double[(int) Math.min(maxCount + 1, DENSE_LIMIT)];
+        sparseCounts = new double[numLarge];
+        sparseAdjusted = new double[numLarge];
+        int large = 0;
+        for (double c : numberWithCount.keySet()) {
+            double number = numberWithCount.get(c);
+            if (number <= 0) {
+                continue;
+            }
+            Double numberWithNext = numberWithCount.get(c + 1.0);
+            double adjusted = numberWithNext == null ? 0.0 : (c+1)*numberWithNext/number;
+            if (c < DENSE_LIMIT) {
+                dense[(int) c] = adjusted;
+            } else {
+                sparseCounts[large++] = c;
+            }
+        }
+        Arrays.sort(sparseCounts);
+        for (int i = 0; i < numLarge; i++) {
+            double c = sparseCounts[i];
+            Double numberWithNext = numberWithCount.get(c + 1.0);
+            sparseAdjusted[i] = numberWithNext == null ? 0.0 : (c+1)*numberWithNext/numberWithCount.get(c);
+        }
+
+        Double n1 = numberWithCount.get(1.0);
+        this.numberWithCountOne = n1 == null ? 0.0 : n1;
+        this.numTraining = numTraining;
+        this.unseenProbability = numberWithCountOne / numTraining;
+    }
+
+    // The Good-Turing count for something seen c times (0 if no count c was seen)
+    public double count(double c)
+    {
+        if (c < dense.length) {
+            return dense[(int) c];
+        }
+        int i = Arrays.binarySearch(sparseCounts, c);
+        return i < 0 ? 0.0 : sparseAdjusted[i];
+    }
+}
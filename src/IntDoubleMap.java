@@ -0,0 +1,131 @@
+/*
+ * Open-addressing hash map from non-negative int keys (word ids) to double
+ * counts. Absent keys read as 0. Slots can be walked with
+ * capacity()/keyAt()/valueAt(); empty slots have a negative key.
+ */
+public class IntDoubleMap
+{
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private double[] values;
+    private int size;
+
+    public IntDoubleMap()
+    {
+        this.keys = new int[4];
+        this.values = new double[4];
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    public double get(int key)
+    {
+        int slot = find(key);
+        if (slot < 0) {
+            return 0.0;
+        }
+        return values[slot];
+    }
+
+    public boolean containsKey(int key)
+    {
+        return find(key) >= 0;
+    }
+
+    public void put(int key, double value)
+    {
+        values[insert(key)] = value;
+        if (size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+    }
+
+    // Adds delta to the value for key and returns the new value
+    public double add(int key, double delta)
+    {
+        int slot = insert(key);
+        values[slot] += delta;
+        double value = values[slot];
+        if (size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        return value;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // Rough heap bytes held by the map
+    public long bytes()
+    {
+        return 24 + ModelMetrics.arrayBytes(keys.length, 4) + ModelMetrics.arrayBytes(values.length, 8);
+    }
+
+    public int capacity()
+    {
+        return keys.length;
+    }
+
+    public int keyAt(int slot)
+    {
+        return keys[slot];
+    }
+
+    public double valueAt(int slot)
+    {
+        return values[slot];
+    }
+
+    private int find(int key)
+    {
+        if (key < 0) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int slot = IntMap.hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    // Returns the slot for key, claiming an empty one if needed (caller resizes)
+    private int insert(int key)
+    {
+        int mask = keys.length - 1;
+        int slot = IntMap.hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        double[] oldValues = values;
+        keys = new int[capacity];
+        values = new double[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = IntMap.hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Open-addressing hash map from non-negative int keys (word ids) to objects.
+ * Used in place of HashMap<Integer, V> so lookups don't box their keys.
+ * Slots can be walked with capacity()/keyAt()/valueAt(); empty slots have a
+ * null value.
+ */
+public class IntMap<V>
+{
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntMap()
+    {
+        this(4);
+    }
+
+    public IntMap(int expectedSize)
+    {
+        int capacity = 4;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity *= 2;
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        if (key < 0) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(int key)
+    {
+        return get(key) != null;
+    }
+
+    public void put(int key, V value)
+    {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // Rough heap bytes held by the map, not counting the values themselves
+    public long bytes()
+    {
+        return 24 + ModelMetrics.arrayBytes(keys.length, 4) + ModelMetrics.arrayBytes(values.length, 4);
+    }
+
+    public int capacity()
+    {
+        return keys.length;
+    }
+
+    public int keyAt(int slot)
+    {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot)
+    {
+        return (V) values[slot];
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Word ids are dense, so scramble them before masking
+    static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
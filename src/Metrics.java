@@ -0,0 +1,62 @@
+/*
+ * Where models report what they are doing: counters (tokens trained on,
+ * walks down a count store), histograms (query latencies) and gauges
+ * (sizes, polled when the metrics are read). Models hold Metrics.NONE
+ * unless given a registry, and NONE's enabled() is false, so a model that
+ * nobody is watching doesn't even read the clock. MetricsRegistry keeps the
+ * metrics in memory and can publish them over JMX; any other registry can
+ * be plugged in by implementing this interface.
+ *
+ * Names are dotted paths, e.g. "ngram3.query.nanos", so several models can
+ * report into one registry under their own prefix. Implementations must be
+ * thread-safe: FrozenNgram snapshots and ParallelTrainer report from many
+ * threads at once.
+ */
+public interface Metrics
+{
+    // A running total
+    public interface Counter
+    {
+        public void add(long amount);
+    }
+
+    // A distribution of values, e.g. latencies in nanoseconds
+    public interface Histogram
+    {
+        public void record(long value);
+    }
+
+    // A value worked out whenever the metrics are read
+    public interface Gauge
+    {
+        public double value();
+    }
+
+    public static final Counter NO_COUNTER = new Counter() {
+        public void add(long amount) {}
+    };
+
+    public static final Histogram NO_HISTOGRAM = new Histogram() {
+        public void record(long value) {}
+    };
+
+    // Ignores everything
+    public static final Metrics NONE = new Metrics() {
+        public boolean enabled() { return false; }
+        public Counter counter(String name) { return NO_COUNTER; }
+        public Histogram histogram(String name) { return NO_HISTOGRAM; }
+        public void gauge(String name, Gauge gauge) {}
+    };
+
+    // False if nothing is kept, so callers can skip the work of measuring
+    public boolean enabled();
+
+    // The counter with this name, made the first time it is asked for
+    public Counter counter(String name);
+
+    // The histogram with this name, made the first time it is asked for
+    public Histogram histogram(String name);
+
+    // Reads gauge for the named value from now on (replacing any earlier one)
+    public void gauge(String name, Gauge gauge);
+}
@@ -0,0 +1,274 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/*
+ * Metrics kept in memory, readable with values() or toString(), and over
+ * JMX (jconsole, or any JMX scraper) once registerMBean() has been called.
+ *
+ * Counters are LongAdders, so threads adding to one don't fight over a
+ * cache line. Histograms count values in log-linear buckets: every value
+ * below 16 has its own, and each power of two above that is split into 8,
+ * so a fixed 488 buckets cover every long and a percentile read back is
+ * within 1/16 of the true value. Each histogram is read out as its count,
+ * mean, 50th, 90th and 99th percentile and max.
+ */
+public class MetricsRegistry implements Metrics
+{
+    public static final String JMX_DOMAIN = "ngrams"; // Of the ObjectNames registerMBean uses
+
+    private final ConcurrentHashMap<String, AdderCounter> counters = new ConcurrentHashMap<String, AdderCounter>();
+    private final ConcurrentHashMap<String, LogHistogram> histograms = new ConcurrentHashMap<String, LogHistogram>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    public boolean enabled()
+    {
+        return true;
+    }
+
+    public Counter counter(String name)
+    {
+        AdderCounter counter = counters.get(name);
+        if (counter == null) {
+            AdderCounter made = new AdderCounter();
+            counter = counters.putIfAbsent(name, made);
+            if (counter == null) {
+                counter = made;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name)
+    {
+        LogHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LogHistogram made = new LogHistogram();
+            histogram = histograms.putIfAbsent(name, made);
+            if (histogram == null) {
+                histogram = made;
+            }
+        }
+        return histogram;
+    }
+
+    public void gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    // Current total of a counter (0 if there is none)
+    public long count(String name)
+    {
+        AdderCounter counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    // The pth percentile (0 < p <= 100) of a histogram's values (0 if there are none)
+    public long percentile(String name, double p)
+    {
+        LogHistogram histogram = histograms.get(name);
+        return histogram == null ? 0 : histogram.percentile(p);
+    }
+
+    // Every metric by name, histograms as name.count, name.mean, name.p50,
+    // name.p90, name.p99 and name.max
+    public Map<String, Double> values()
+    {
+        TreeMap<String, Double> values = new TreeMap<String, Double>();
+        for (Map.Entry<String, AdderCounter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), (double) entry.getValue().sum());
+        }
+        for (Map.Entry<String, LogHistogram> entry : histograms.entrySet()) {
+            LogHistogram histogram = entry.getValue();
+            String name = entry.getKey();
+            long count = histogram.count();
+            values.put(name + ".count", (double) count);
+            values.put(name + ".mean", count == 0 ? 0.0 : (double) histogram.sum.sum() / count);
+            values.put(name + ".p50", (double) histogram.percentile(50));
+            values.put(name + ".p90", (double) histogram.percentile(90));
+            values.put(name + ".p99", (double) histogram.percentile(99));
+            values.put(name + ".max", (double) histogram.max.get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value());
+        }
+        return values;
+    }
+
+    // Publishes every metric (as it is when read) as a read-only attribute of
+    // the MBean ngrams:type=Metrics,name=<name> on the platform MBean server
+    public ObjectName registerMBean(String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), objectName);
+        return objectName;
+    }
+
+    public String toString()
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Double> entry : values().entrySet()) {
+            double value = entry.getValue();
+            report.append(entry.getKey()).append(": ");
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                report.append((long) value);
+            } else {
+                report.append(value);
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+    private static class AdderCounter implements Counter
+    {
+        final LongAdder total = new LongAdder();
+
+        public void add(long amount)
+        {
+            total.add(amount);
+        }
+
+        long sum()
+        {
+            return total.sum();
+        }
+    }
+
+    private static class LogHistogram implements Histogram
+    {
+        static final int LINEAR = 16; // Values below this get a bucket each
+        static final int SPLIT_BITS = 3; // Each power of two above is split into 2^SPLIT_BITS buckets
+        static final int BUCKETS = LINEAR + ((63 - 4) << SPLIT_BITS); // Powers 2^4 to 2^62
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        public void record(long value)
+        {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucket(value));
+            sum.add(value);
+            long seen = max.get();
+            while (value > seen && !max.compareAndSet(seen, value)) {
+                seen = max.get();
+            }
+        }
+
+        static int bucket(long value)
+        {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // 4 and up
+            int split = (int) (value >>> (exponent - SPLIT_BITS)) & ((1 << SPLIT_BITS) - 1);
+            return LINEAR + ((exponent - 4) << SPLIT_BITS) + split;
+        }
+
+        // Middle of the range of values in the bucket
+        static long middle(int bucket)
+        {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int exponent = ((bucket - LINEAR) >> SPLIT_BITS) + 4;
+            long split = (bucket - LINEAR) & ((1 << SPLIT_BITS) - 1);
+            long width = 1L << (exponent - SPLIT_BITS);
+            long lowest = (1L << exponent) + split * width;
+            return lowest + width / 2;
+        }
+
+        long count()
+        {
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                count += buckets.get(b);
+            }
+            return count;
+        }
+
+        long percentile(double p)
+        {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] = buckets.get(b);
+                total += counts[b];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank) {
+                    return Math.min(middle(b), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    // The registry's values as JMX attributes
+    private class MetricsBean implements DynamicMBean
+    {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            Double value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes)
+        {
+            Map<String, Double> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Double value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo()
+        {
+            Map<String, Double> values = values();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "N-gram model metrics", attributes,
+                                 null, null, null);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The metrics every model reports, looked up once under the model's name
+ * so the hot paths only touch fields:
+ *
+ *   <name>.train.tokens, <name>.train.nanos    words counted and time spent
+ *                                              counting (train and update)
+ *   <name>.train.tokensPerSecond               the two divided
+ *   <name>.query.nanos                         latency of probability queries, one
+ *                                              in sampleEvery picked at random
+ *   <name>.score.nanos                         latency of scoring each sentence
+ *   <name>.store.walks                         walks down the count store, one
+ *                                              per context looked up but not cached
+ *
+ * Reading the clock twice costs about as much as a query that finds its
+ * context in a cache, so only a sample of queries is timed, which is
+ * plenty for percentiles over a serving workload. Only Ngram times queries
+ * and walks its store; Unigram and Bigram queries are a lookup or two.
+ * Each model adds gauges for its own sizes; those that take a walk of the
+ * model are worked out by freeze() and passed to size(), never while
+ * another thread may be training. Models start out with NONE,
+ * whose start() doesn't read the clock and whose other methods do nothing.
+ */
+public class ModelMetrics
+{
+    public static final ModelMetrics NONE = new ModelMetrics(Metrics.NONE, "");
+    public static final int DEFAULT_SAMPLE_EVERY = 16; // Queries per timed query
+
+    public final Metrics metrics; // Where the metrics go
+    public final String name; // Prefix of this model's metric names
+    public final boolean enabled; // metrics.enabled(), read once
+    public final int sampleEvery; // Queries per timed query, a power of two
+
+    private final Metrics.Counter trainTokens;
+    private final Metrics.Counter trainNanos;
+    private final Metrics.Histogram queryNanos;
+    private final Metrics.Histogram scoreNanos;
+    private final Metrics.Counter storeWalks;
+    private final LongAdder tokensTotal = new LongAdder(); // For tokensPerSecond
+    private final LongAdder nanosTotal = new LongAdder();
+    private final ConcurrentHashMap<String, Double> sizes = new ConcurrentHashMap<String, Double>(); // See size()
+
+    public ModelMetrics(Metrics metrics, String name)
+    {
+        this(metrics, name, DEFAULT_SAMPLE_EVERY);
+    }
+
+    // Times one query in sampleEvery (rounded up to a power of two; 1 for all)
+    public ModelMetrics(Metrics metrics, String name, int sampleEvery)
+    {
+        this.metrics = metrics;
+        this.name = name;
+        this.enabled = metrics.enabled();
+        this.sampleEvery = Integer.highestOneBit(Math.max(sampleEvery, 1) * 2 - 1);
+        this.trainTokens = metrics.counter(name + ".train.tokens");
+        this.trainNanos = metrics.counter(name + ".train.nanos");
+        this.queryNanos = metrics.histogram(name + ".query.nanos");
+        this.scoreNanos = metrics.histogram(name + ".score.nanos");
+        this.storeWalks = metrics.counter(name + ".store.walks");
+        gauge("train.tokensPerSecond", new Metrics.Gauge() {
+            public double value()
+            {
+                long nanos = nanosTotal.sum();
+                return nanos == 0 ? 0.0 : tokensTotal.sum() * 1e9 / nanos;
+            }
+        });
+    }
+
+    // Reports gauge as <name>.<metric>
+    public void gauge(String metric, Metrics.Gauge gauge)
+    {
+        metrics.gauge(name + "." + metric, gauge);
+    }
+
+    // Reports value as <name>.<metric> until it is next called for metric
+    public void size(final String metric, double value)
+    {
+        if (enabled && sizes.put(metric, value) == null) {
+            gauge(metric, new Metrics.Gauge() {
+                public double value() { return sizes.get(metric); }
+            });
+        }
+    }
+
+    // The time to pass to trained() and scored(), or 0 if nothing is being measured
+    public long start()
+    {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    // The time to pass to queried(), or 0 if this query isn't one of the sample
+    public long startQuery()
+    {
+        // Each thread draws its own random numbers, so query threads share no writes
+        if (enabled && (ThreadLocalRandom.current().nextInt() & (sampleEvery - 1)) == 0) {
+            return System.nanoTime();
+        }
+        return 0L;
+    }
+
+    // tokens were counted, starting at start
+    public void trained(long tokens, long start)
+    {
+        if (enabled) {
+            long nanos = System.nanoTime() - start;
+            trainTokens.add(tokens);
+            trainNanos.add(nanos);
+            tokensTotal.add(tokens);
+            nanosTotal.add(nanos);
+        }
+    }
+
+    // A probability query that began at startQuery() is done
+    public void queried(long start)
+    {
+        if (start != 0) {
+            queryNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    // A sentence that began to be scored at start is done
+    public void scored(long start)
+    {
+        if (enabled) {
+            scoreNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    // Rough heap bytes of an array (a 16-byte header, padded to 8 bytes, as
+    // on a 64-bit JVM with compressed references), for the size gauges
+    public static long arrayBytes(long length, int elementBytes)
+    {
+        return (16 + length * elementBytes + 7) & ~7L;
+    }
+
+    // A context was looked up by walking down the count store
+    public void walked()
+    {
+        if (enabled) {
+            storeWalks.add(1);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Writes a trained model in the binary format read by BinaryModel.
+ *
+ * N-grams must be added in sorted order (comparing word ids left to right),
+ * which lets the writer stream them out without holding them in memory: each
+ * n-gram becomes a fixed-size record and each run of n-grams sharing the same
+ * first n-1 words becomes a context record. The two sections are spooled to
+ * temporary files next to the output and copied in behind the header and the
+ * vocabulary on close(). Good-Turing counts are computed on the way through
+ * from the count-of-counts, so only raw counts need to be passed in.
+ *
+ * Given countBits, n-gram records hold a one- or two-byte code instead of
+ * their two doubles: a Quantizer codebook is fitted to the count-of-counts
+ * up front (so every count that occurs weighs in) and each code stands for
+ * one count and the mean Good-Turing count of the counts it covers. Context
+ * totals are summed from the decoded counts, so every context's
+ * distribution still sums to one. This count codebook is the only
+ * quantization the format has: it holds one order's counts, so BackoffModel's
+ * per-order log-probability and backoff codebooks don't apply to it.
+ *
+ * Layout (big-endian):
+ *   header:   MAGIC, VERSION, order, vocabulary ids, contexts, n-grams (ints),
+ *             training set size, N1, add-one vocab size (doubles),
+ *             vocabulary, contexts and n-grams offsets (longs),
+ *             bits per count code (int, 0 for doubles), codebook offset (long)
+ *   vocab:    char offset of each id (+1 for the end), hash table size, hash
+ *             table of ids (-1 = empty), then every word's chars
+ *   codebook: number of codes (int), then each code's count and Good-Turing
+ *             count (doubles); no codes without count codes
+ *   contexts: order-1 word ids, count, Good-Turing count (doubles),
+ *             index of the first n-gram, number of n-grams (ints)
+ *   n-grams:  last word id (int), then count, Good-Turing count (doubles)
+ *             or the code of both (a byte or short)
+ *
+ * Version 1 files are the same without count codes or their header fields.
+ */
+public class ModelWriter
+{
+    public static final int MAGIC = 0x4E47524D; // "NGRM"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 6*4 + 3*8 + 3*8 + 4 + 8;
+
+    public String filename;
+    public int order; // (as in n-gram)
+    public Vocabulary vocab;
+    public HashMap<Double, Double> numberOfNgramsWithCount; // The number of ngrams that occur x times
+    public double numTrainingNgrams; // The size of the training set (# non-distinct words)
+    public double vocabSize; // Size of the vocabulary for add-one smoothing
+    public GoodTuringTable goodTuringTable;
+    public Quantizer countCodebook; // null when counts are written as doubles
+
+    private double[] codeCount; // Count each code stands for
+    private double[] codeGTCount; // Good-Turing count each code stands for
+
+    private File contextsFile;
+    private File ngramsFile;
+    private DataOutputStream contexts;
+    private DataOutputStream ngrams;
+    private int numContexts;
+    private int numNgrams;
+
+    // The context currently being written and its running totals
+    private int[] context;
+    private double contextCount;
+    private double contextGTCount;
+    private int contextFirstNgram;
+    private int lastWord;
+
+    public ModelWriter(String filename, int order, Vocabulary vocab,
+                       HashMap<Double, Double> numberOfNgramsWithCount,
+                       double numTrainingNgrams, double vocabSize) throws IOException
+    {
+        this(filename, order, vocab, numberOfNgramsWithCount, numTrainingNgrams, vocabSize, 0);
+    }
+
+    // With countBits > 0, n-gram counts are written as codes into a codebook
+    // of at most 2^countBits counts (countBits <= 16)
+    public ModelWriter(String filename, int order, Vocabulary vocab,
+                       HashMap<Double, Double> numberOfNgramsWithCount,
+                       double numTrainingNgrams, double vocabSize, int countBits) throws IOException
+    {
+        this.filename = filename;
+        this.order = order;
+        this.vocab = vocab;
+        this.numberOfNgramsWithCount = numberOfNgramsWithCount;
+        this.numTrainingNgrams = numTrainingNgrams;
+        this.vocabSize = vocabSize;
+        this.goodTuringTable = new GoodTuringTable(numberOfNgramsWithCount, numTrainingNgrams);
+        if (countBits > 0) {
+            makeCodebook(countBits);
+        }
+
+        File dir = new File(filename).getAbsoluteFile().getParentFile();
+        contextsFile = File.createTempFile("contexts", ".tmp", dir);
+        ngramsFile = File.createTempFile("ngrams", ".tmp", dir);
+        contexts = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(contextsFile), 1 << 16));
+        ngrams = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ngramsFile), 1 << 16));
+    }
+
+    // Fits the count codebook to the count-of-counts and works out each
+    // code's Good-Turing count
+    private void makeCodebook(int bits)
+    {
+        int number = numberOfNgramsWithCount.size();
+        double[] counts = new double[number];
+        double[] weights = new double[number];
+        int distinct = 0;
+        for (Map.Entry<Double, Double> entry : numberOfNgramsWithCount.entrySet()) {
+            if (entry.getValue() > 0) {
+                counts[distinct] = entry.getKey();
+                weights[distinct++] = entry.getValue();
+            }
+        }
+        countCodebook = Quantizer.fit(counts, weights, distinct, bits);
+
+        codeCount = new double[countCodebook.size()];
+        codeGTCount = new double[countCodebook.size()];
+        double[] codeWeight = new double[countCodebook.size()];
+        for (int i = 0; i < distinct; i++) {
+            int code = countCodebook.encode(counts[i]);
+            codeGTCount[code] += weights[i] * goodTuringTable.count(counts[i]);
+            codeWeight[code] += weights[i];
+        }
+        for (int code = 0; code < codeCount.length; code++) {
+            codeCount[code] = countCodebook.decode(code);
+            if (codeWeight[code] > 0) {
+                codeGTCount[code] /= codeWeight[code];
+            }
+        }
+    }
+
+    // Number of bytes in one context record for a model of this order
+    public static int contextRecordSize(int order)
+    {
+        return 4*(order-1) + 8 + 8 + 4 + 4;
+    }
+
+    // Number of bytes in one n-gram record with counts coded in countBits
+    // bits (0 for doubles)
+    public static int ngramRecordSize(int countBits)
+    {
+        return countBits == 0 ? 4 + 8 + 8 : 4 + countBits/8;
+    }
+
+    // Adds the next n-gram (word ids) with its raw count; n-grams must arrive in sorted order
+    public void add(int[] ngram, double count) throws IOException
+    {
+        int compare = context == null ? 1 : compareContext(ngram);
+        if (compare < 0 || (compare == 0 && ngram[order-1] <= lastWord)) {
+            throw new IllegalArgumentException("N-grams must be added in sorted order");
+        }
+        if (compare > 0) {
+            finishContext();
+            context = new int[order-1];
+            System.arraycopy(ngram, 0, context, 0, order-1);
+            contextCount = 0;
+            contextGTCount = 0;
+            contextFirstNgram = numNgrams;
+        }
+
+        double gtcount;
+        ngrams.writeInt(ngram[order-1]);
+        if (countCodebook == null) {
+            gtcount = goodTuringTable.count(count);
+            ngrams.writeDouble(count);
+            ngrams.writeDouble(gtcount);
+        } else {
+            int code = countCodebook.encode(count);
+            if (countCodebook.bits == 8) {
+                ngrams.writeByte(code);
+            } else {
+                ngrams.writeShort(code);
+            }
+            count = codeCount[code];
+            gtcount = codeGTCount[code];
+        }
+        numNgrams++;
+
+        contextCount += count;
+        contextGTCount += gtcount;
+        lastWord = ngram[order-1];
+    }
+
+    private int compareContext(int[] ngram)
+    {
+        for (int i = 0; i < order-1; i++) {
+            if (ngram[i] != context[i]) {
+                return ngram[i] < context[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private void finishContext() throws IOException
+    {
+        if (context == null) {
+            return;
+        }
+        for (int word : context) {
+            contexts.writeInt(word);
+        }
+        contexts.writeDouble(contextCount);
+        contexts.writeDouble(contextGTCount);
+        contexts.writeInt(contextFirstNgram);
+        contexts.writeInt(numNgrams - contextFirstNgram);
+        numContexts++;
+    }
+
+    // Writes the model file and removes the temporary files
+    public void close() throws IOException
+    {
+        finishContext();
+        contexts.close();
+        ngrams.close();
+
+        // Vocabulary hash table, at most half full
+        int tableSize = 2;
+        while (tableSize < vocab.size() * 2) {
+            tableSize *= 2;
+        }
+        int[] table = new int[tableSize];
+        java.util.Arrays.fill(table, -1);
+        int chars = 0;
+        for (int id = 0; id < vocab.size(); id++) {
+            String word = vocab.word(id);
+            int slot = BinaryModel.hash(word) & (tableSize - 1);
+            while (table[slot] != -1) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot] = id;
+            chars += word.length();
+        }
+
+        long vocabOffset = HEADER_SIZE;
+        long codebookOffset = vocabOffset + 4L*(vocab.size()+1) + 4 + 4L*tableSize + 2L*chars;
+        long contextsOffset = codebookOffset + (countCodebook == null ? 0 : 4 + 16L*codeCount.length);
+        long ngramsOffset = contextsOffset + (long) numContexts * contextRecordSize(order);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(order);
+            out.writeInt(vocab.size());
+            out.writeInt(numContexts);
+            out.writeInt(numNgrams);
+            out.writeDouble(numTrainingNgrams);
+            out.writeDouble(goodTuringTable.numberWithCountOne);
+            out.writeDouble(vocabSize);
+            out.writeLong(vocabOffset);
+            out.writeLong(contextsOffset);
+            out.writeLong(ngramsOffset);
+            out.writeInt(countCodebook == null ? 0 : countCodebook.bits);
+            out.writeLong(codebookOffset);
+
+            int offset = 0;
+            for (int id = 0; id < vocab.size(); id++) {
+                out.writeInt(offset);
+                offset += vocab.word(id).length();
+            }
+            out.writeInt(offset);
+            out.writeInt(tableSize);
+            for (int id : table) {
+                out.writeInt(id);
+            }
+            for (int id = 0; id < vocab.size(); id++) {
+                out.writeChars(vocab.word(id));
+            }
+            if (countCodebook != null) {
+                out.writeInt(codeCount.length);
+                for (int code = 0; code < codeCount.length; code++) {
+                    out.writeDouble(codeCount[code]);
+                    out.writeDouble(codeGTCount[code]);
+                }
+            }
+
+            copy(contextsFile, out);
+            copy(ngramsFile, out);
+        } finally {
+            out.close();
+            contextsFile.delete();
+            ngramsFile.delete();
+        }
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,50 +1,74 @@
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Stack;
+import java.util.SplittableRandom;
 import java.io.*;
 
 /*
  * General case n-gram for any n
  */
-public class Ngram
+public class Ngram implements ParallelTrainer.Shard
 {
-    public Set<String> samples; // Set of sample sentences to train from
+    public Iterable<String> samples; // Sample sentences to train from (may be streamed)
     public int n; // (as in n-gram)
-    public NgramCounter ngc; // The data structure for holding n-gram counts
+    public NgramStore.Type storeType; // Which NgramStore ngc is
+    public Vocabulary vocab; // Maps words to the ids the counter is keyed by
+    public NgramStore ngc; // The data structure for holding n-gram counts
     
     // For add-one smoothing
-    public Set<String> wordSet; // Used to find the vocabulary
     public double vocabSize; // Size of the vocabulary
     
     // For Good Turing Smoothing
     public double numTrainingNgrams; // The size of the training set (# non-distinct words)
     public HashMap<Double, Double> numberOfNgramsWithCount; // The number of ngrams that occur x times
+    public GoodTuringTable goodTuringTable; // Good-Turing counts by raw count, made by freeze()
+    public BackoffModel kneserNey; // Interpolated modified Kneser-Ney over all orders, made by freezeKneserNey()
     public boolean goodTuringCountsAvailable = false; // True when good turing counts are available
+    public boolean samplersAvailable = false; // True when getSentence can be used
+    public ContextCache contextCache; // Recently looked up contexts, null for none (see cacheContexts)
+    private boolean contextCacheStale = false; // Counts changed since the cache was last cleared
+    public ModelMetrics metrics = ModelMetrics.NONE; // Where training and query metrics go (see setMetrics)
     
-    public final String START = ":S"; // The sentence start symbol
+    public final int START = Vocabulary.START; // The sentence start symbol
     
     public static void main(String[] args)
     {
-        if (args.length != 3) {
-            System.out.println("You must supply 3 arguments:\n(1) Training file\n" +
-                               "(2) Test file\n(3) an integer n > 1");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("You must supply 3 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) Test file, directory or glob\n(3) an integer n > 1\n" +
+                               "and optionally (4) the count store, trie or packed");
             System.exit(1);
         }
-        NgramParser p = new NgramParser(args[0], true);
-        HashSet<String> set = p.parse();
+        Corpus set = Corpus.openOrExit(args[0]);
         
-        Ngram n = new Ngram(set, Integer.parseInt(args[2]));
+        NgramStore.Type storeType = NgramStore.Type.TRIE;
+        if (args.length == 4) {
+            storeType = NgramStore.Type.valueOf(args[3].toUpperCase());
+        }
+        Ngram n = new Ngram(set, Integer.parseInt(args[2]), new Vocabulary(), storeType);
+        
+        // -Dngrams.metrics=<name> reports metrics under name, over JMX while
+        // running and printed at the end
+        String metricsName = System.getProperty("ngrams.metrics");
+        MetricsRegistry registry = null;
+        if (metricsName != null) {
+            registry = new MetricsRegistry();
+            n.setMetrics(registry, metricsName);
+            try {
+                registry.registerMBean(metricsName);
+            } catch (javax.management.JMException jme) {
+                System.out.println("JMX error!");
+                jme.printStackTrace();
+            }
+        }
         n.train();
+        n.freeze();
         
         System.out.println("Done training.");
         
-        NgramParser test = new NgramParser(args[1], true);
-        HashSet<String> testset = test.parse();
-        System.out.println("Perplexity of the test set: " + n.perplexity(testset));
+        Corpus testset = Corpus.openOrExit(args[1]);
+        System.out.println(n.evaluate(testset));
+        if (registry != null) {
+            System.out.print(registry);
+        }
         
         System.exit(0);
         System.out.println("Press enter for generated sentences.");
@@ -60,124 +84,507 @@ public class Ngram
         }
     }
     
-    public Ngram(HashSet<String> samples, int n)
+    public Ngram(Iterable<String> samples, int n)
+    {
+        this(samples, n, new Vocabulary());
+    }
+    
+    public Ngram(Iterable<String> samples, int n, Vocabulary vocab)
+    {
+        this(samples, n, vocab, NgramStore.Type.TRIE);
+    }
+    
+    public Ngram(Iterable<String> samples, int n, Vocabulary vocab, NgramStore.Type storeType)
     {
         this.samples = samples;
         this.n = n;
+        this.vocab = vocab;
+        this.storeType = storeType;
         this.numberOfNgramsWithCount = new HashMap<Double, Double>();
-        this.ngc = new NgramCounter(n, numberOfNgramsWithCount);
-        
-        this.wordSet = new HashSet<String>();
+        this.ngc = storeType.create(n);
         
         this.numTrainingNgrams = 0;
     }
     
     public void train()
     {
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
-        for (String sample : samples) {
-            // Create list of words in the sample sentence & fill it
-            ArrayList<String> sampleWords = new ArrayList<String>();
-            Matcher matcher = pattern.matcher(sample);
-            while (matcher.find()) {
-                String match = matcher.group();
-                sampleWords.add(match);
-                
-                // Add to vocab for +1 smoothing
-                wordSet.add(match);
+        long start = metrics.start();
+        double before = numTrainingNgrams;
+        SampleSource.Cursor cursor = Samples.cursor(samples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
+        }
+        
+        // Set the vocab size so we don't have to call vocab.size() more than once
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingNgrams - before), start);
+    }
+    
+    // Reports training and query metrics to metrics, named name.* (see
+    // ModelMetrics), with gauges for the sizes of the store (as of the last
+    // freeze()) and vocabulary
+    public void setMetrics(Metrics metrics, String name)
+    {
+        this.metrics = new ModelMetrics(metrics, name);
+        if (goodTuringCountsAvailable) {
+            reportSizes();
+        }
+        this.metrics.gauge("vocab.size", new Metrics.Gauge() {
+            public double value() { return vocab.size(); }
+        });
+        this.metrics.gauge("cache.hitRate", new Metrics.Gauge() {
+            public double value() { return contextCache == null ? 0.0 : contextCache.hitRate(); }
+        });
+    }
+    
+    // Adds newSamples to an already trained model. If it was frozen, the
+    // smoothing is brought up to date and only the samplers of contexts the
+    // new samples went through are rebuilt, so it can be queried again at once
+    public void update(Iterable<String> newSamples)
+    {
+        long start = metrics.start();
+        double before = numTrainingNgrams;
+        SampleSource.Cursor cursor = Samples.cursor(newSamples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
+        }
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingNgrams - before), start);
+        if (goodTuringCountsAvailable) {
+            freeze();
+        }
+    }
+    
+    // Trains on samples with one shard per thread, then merges the shards
+    public void trainParallel(int threads)
+    {
+        long start = metrics.start();
+        double before = numTrainingNgrams;
+        Ngram[] shards = new Ngram[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Ngram(null, n, new Vocabulary(vocab.tokenizer), storeType);
+        }
+        ParallelTrainer.run(samples, shards);
+        
+        for (Ngram shard : shards) {
+            merge(shard);
+        }
+        // Count-of-counts are only meaningful once every shard's counts are in
+        rebuildCountOfCounts();
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingNgrams - before), start);
+    }
+    
+    // Counts sample without maintaining numberOfNgramsWithCount (see trainParallel)
+    public void countSample(String sample)
+    {
+        countSample(sample, 1, false);
+    }
+    
+    // Counts times occurrences of sample (see SampleSource)
+    private void countSample(CharSequence sample, long times, boolean updateCountOfCounts)
+    {
+        // Ids of the words in the sample sentence (new words are added to the vocab)
+        int[] sampleWords = vocab.encode(sample);
+        clearContextCache();
+        
+        // Add each group of n words to the n-gram counter, e.g., ...
+        // [:S :S :S w1] w2 w3 w4 w5 w6
+        // :S [:S :S w1 w2] w3 w4 w5 w6
+        // :S :S [:S w1 w2 w3] w4 w5 w6
+        // :S :S :S [w1 w2 w3 w4] w5 w6
+        // :S :S :S w1 [w2 w3 w4 w5] w6
+        // :S :S :S w1 w2 [w3 w4 w5 w6]
+        int[] nWords = new int[n];
+        for (int i = 0; i < n; i++) {
+            nWords[i] = START;
+        }
+        for (int word : sampleWords) {
+            for (int i = 0; i < n-1; i++) {
+                nWords[i] = nWords[i+1];
             }
+            nWords[n-1] = word;
             
-            // Add each group of n words to the n-gram counter, e.g., ...
-            // [:S :S :S w1] w2 w3 w4 w5 w6
-            // :S [:S :S w1 w2] w3 w4 w5 w6
-            // :S :S [:S w1 w2 w3] w4 w5 w6
-            // :S :S :S [w1 w2 w3 w4] w5 w6
-            // :S :S :S w1 [w2 w3 w4 w5] w6
-            // :S :S :S w1 w2 [w3 w4 w5 w6]
-            String[] nWords = new String[n];
-            for (int i = 0; i < n; i++) {
-                nWords[i] = START;
-            }
-            for (String word : sampleWords) {
-                for (int i = 0; i < n-1; i++) {
-                    nWords[i] = nWords[i+1];
-                }
-                nWords[n-1] = word;
-                
-                // Add to the size of the training set for gt-smoothing
-                numTrainingNgrams += 1;
-                
-                // Insert the words into the counter and receive count for this ngram
-                double countForNgram = ngc.insert(nWords);
-                
-                // Decrement the number of ngrams with old countForNgram for gt-smoothing
-                if (countForNgram != 1.0) {
-                    numberOfNgramsWithCount.put(countForNgram-1,
-                        numberOfNgramsWithCount.get(countForNgram-1) - 1.0);
+            // Add to the size of the training set for gt-smoothing
+            numTrainingNgrams += times;
+            
+            // Insert the words into the counter and receive count for this ngram
+            double countForNgram = ngc.insert(nWords, times);
+            if (!updateCountOfCounts) {
+                continue;
+            }
+            
+            // Decrement the number of ngrams with old countForNgram for gt-smoothing
+            double oldCount = countForNgram - times;
+            if (oldCount > 0.0) {
+                numberOfNgramsWithCount.put(oldCount,
+                    numberOfNgramsWithCount.get(oldCount) - 1.0);
+            }
+            // Increment the number of ngrams with the new countForNgram for gt-smoothing
+            if (!numberOfNgramsWithCount.containsKey(countForNgram)) {
+                numberOfNgramsWithCount.put(countForNgram, 1.0);
+            } else {
+                numberOfNgramsWithCount.put(countForNgram,
+                    numberOfNgramsWithCount.get(countForNgram) + 1.0);
+            }
+        }
+    }
+    
+    // Adds all of shard's counts into this model, translating its word ids to ours
+    public void merge(Ngram shard)
+    {
+        final int[] ids = shard.vocab.idsIn(vocab);
+        final int[] nWords = new int[n];
+        shard.ngc.forEachNgram(new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                for (int i = 0; i < n; i++) {
+                    nWords[i] = ids[ngram[i]];
                 }
-                // Increment the number of ngrams with the new countForNgram for gt-smoothing
-                if (!numberOfNgramsWithCount.containsKey(countForNgram)) {
-                    numberOfNgramsWithCount.put(countForNgram, 1.0);
+                ngc.insert(nWords, count);
+            }
+        });
+        numTrainingNgrams += shard.numTrainingNgrams;
+        clearContextCache();
+    }
+    
+    // Recount numberOfNgramsWithCount from scratch by walking every n-gram
+    public void rebuildCountOfCounts()
+    {
+        numberOfNgramsWithCount.clear();
+        numberOfNgramsWithCount.putAll(countOfCounts());
+    }
+    
+    // The number of n-grams in the store with each count
+    public HashMap<Double, Double> countOfCounts()
+    {
+        final HashMap<Double, Double> numberWithCount = new HashMap<Double, Double>();
+        ngc.forEachNgram(new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                Double number = numberWithCount.get(count);
+                numberWithCount.put(count, number == null ? 1.0 : number + 1.0);
+            }
+        });
+        return numberWithCount;
+    }
+    
+    // Drops every n-gram seen fewer than minCount times from the store and
+    // returns how many were dropped. numberOfNgramsWithCount is recounted
+    // from what is left (see prune(minCount, keepCorpusStats))
+    public int prune(double minCount)
+    {
+        return prune(minCount, false);
+    }
+    
+    // As prune(minCount), but with keepCorpusStats numberOfNgramsWithCount
+    // stays that of the whole training set, so good turing smoothing keeps
+    // estimating the unseen mass from every n-gram that was counted.
+    // Recounted, a store pruned at 2 or more has no N1 and gives unseen
+    // n-grams probability 0. numTrainingNgrams is the size of the training
+    // set either way
+    public int prune(final double minCount, boolean keepCorpusStats)
+    {
+        final NgramStore pruned = storeType.create(n);
+        final int[] removed = new int[1];
+        ngc.forEachNgram(new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                if (count >= minCount) {
+                    pruned.insert(ngram, count);
                 } else {
-                    numberOfNgramsWithCount.put(countForNgram,
-                        numberOfNgramsWithCount.get(countForNgram) + 1.0);
+                    removed[0]++;
                 }
             }
+        });
+        ngc = pruned;
+        clearContextCache();
+        if (!keepCorpusStats) {
+            rebuildCountOfCounts();
         }
         
-        // Set the vocab size so we don't have to call wordSet.size() more than once
-        vocabSize = wordSet.size();
+        if (goodTuringCountsAvailable) {
+            freeze();
+        }
+        return removed[0];
     }
     
     public double unsmoothedProbability(String[] words)
     {
+        return unsmoothedProbability(vocab.lookupAll(words));
+    }
+    
+    public double unsmoothedProbability(int[] words)
+    {
+        long start = metrics.startQuery();
         // If this ngram has occurred, return count / level1Count
-        double count = ngc.count(words);
-        if (count > 0) {
-            return count / ngc.level1Count(words);
-        }
+        NgramStore.Context context = context(words);
+        double count = context == null ? 0.0 : context.count(words[n-1]);
         // Otherwise, return a 0 probability
-        return 0.0;
+        double probability = count > 0 ? count / context.level1Count() : 0.0;
+        metrics.queried(start);
+        return probability;
     }
     
     public double addOneSmoothedProbability(String[] words)
+    {
+        return addOneSmoothedProbability(vocab.lookupAll(words));
+    }
+    
+    public double addOneSmoothedProbability(int[] words)
     {
         // (count(Wn) + 1) / (count(Wn-1) + V)
-        return (ngc.count(words) + 1.0) / (ngc.level1Count(words) + vocabSize);
+        long start = metrics.startQuery();
+        NgramStore.Context context = context(words);
+        double probability;
+        if (context == null) {
+            probability = 1.0 / vocabSize;
+        } else {
+            probability = (context.count(words[n-1]) + 1.0) / (context.level1Count() + vocabSize);
+        }
+        metrics.queried(start);
+        return probability;
     }
     
     public double goodTuringSmoothedProbability(String[] words)
+    {
+        return goodTuringSmoothedProbability(vocab.lookupAll(words));
+    }
+    
+    public double goodTuringSmoothedProbability(int[] words)
     {
         if (!goodTuringCountsAvailable) {
-            System.out.println("Making good turing counts...");
-            makeGoodTuringCounts();
-            System.out.println("Done making good turing counts.");
+            throw new IllegalStateException("Call freeze() after training to make good turing counts");
         }
         
+        long start = metrics.startQuery();
+        double probability = goodTuringSmoothedProbability(context(words), words[n-1]);
+        metrics.queried(start);
+        return probability;
+    }
+    
+    // Keeps the last capacity contexts looked up by the probability and
+    // scoring methods, so repeated contexts skip the walk down the store;
+    // 0 turns the cache off
+    public void cacheContexts(int capacity)
+    {
+        contextCache = capacity > 0 ? new ContextCache(n, capacity) : null;
+    }
+    
+    // Contexts cached as unseen may not be any more once the counts change.
+    // Called for every counted sample, so this only marks the cache and the
+    // next lookup clears it
+    private void clearContextCache()
+    {
+        contextCacheStale = true;
+    }
+    
+    // The context made of the first n-1 words, through the cache if there is one
+    private NgramStore.Context context(int[] words)
+    {
+        if (contextCache == null) {
+            metrics.walked();
+            return ngc.context(words);
+        }
+        if (contextCacheStale) {
+            contextCache.clear();
+            contextCacheStale = false;
+        }
+        long misses = contextCache.misses();
+        NgramStore.Context context = contextCache.context(ngc, words);
+        if (contextCache.misses() != misses) {
+            metrics.walked();
+        }
+        return context;
+    }
+    
+    public double kneserNeySmoothedProbability(String[] words)
+    {
+        return kneserNeySmoothedProbability(vocab.lookupAll(words));
+    }
+    
+    // Interpolated modified Kneser-Ney; the continuation counts and discounts
+    // are all worked out by freezeKneserNey(), so this is two walks of at most n steps
+    public double kneserNeySmoothedProbability(int[] words)
+    {
+        if (kneserNey == null) {
+            throw new IllegalStateException("Call freezeKneserNey() after training to make kneser-ney counts");
+        }
+        long start = metrics.startQuery();
+        double probability = kneserNey.probability(words);
+        metrics.queried(start);
+        return probability;
+    }
+    
+    // Good turing probability of word following an already found context (null if unseen)
+    private double goodTuringSmoothedProbability(NgramStore.Context context, int word)
+    {
         // If this ngram has occurred, return good turing probability
-        double gtcount = ngc.gtcount(words);
+        double gtcount = context == null ? 0.0 : context.gtcount(word);
         if (gtcount > 0) {
-            return gtcount / ngc.level1GTCount(words);
+            return gtcount / context.level1GTCount();
         }
         // Otherwise, return N1/N as per book (page 101?)
-        return numberOfNgramsWithCount.get(1.0)/numTrainingNgrams;
+        return goodTuringTable.unseenProbability;
+    }
+    
+    // Scores each sentence in one pass; returns each sentence's total natural-log
+    // good turing probability, and if tokenLogProbabilities is not null fills
+    // tokenLogProbabilities[i] with the log probability of every token of sentence i
+    public double[] scoreSentences(String[] sentences, double[][] tokenLogProbabilities)
+    {
+        double[] totals = new double[sentences.length];
+        for (int i = 0; i < sentences.length; i++) {
+            int[] words = vocab.lookupAll(sentences[i]);
+            double[] logProbabilities = null;
+            if (tokenLogProbabilities != null) {
+                logProbabilities = new double[words.length];
+                tokenLogProbabilities[i] = logProbabilities;
+            }
+            totals[i] = scoreSentence(words, logProbabilities);
+        }
+        return totals;
+    }
+    
+    // Scores a sentence of word ids in one pass and returns its total natural-log
+    // good turing probability; if logProbabilities is not null, logProbabilities[i]
+    // gets the log probability of words[i] given the words before it
+    public double scoreSentence(int[] words, double[] logProbabilities)
+    {
+        if (!goodTuringCountsAvailable) {
+            throw new IllegalStateException("Call freeze() after training to make good turing counts");
+        }
+        
+        long start = metrics.start();
+        int[] nWords = new int[n];
+        for (int i = 0; i < n; i++) {
+            nWords[i] = START;
+        }
+        
+        double total = 0;
+        NgramStore.Context context = null;
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < n-1; j++) {
+                nWords[j] = nWords[j+1];
+            }
+            nWords[n-1] = words[i];
+            // Each context is the last one moved along by a word, so it is
+            // reached from the last through its suffix link in one step; the
+            // store is only walked at the start, for unseen contexts, and
+            // never for n = 1, where the context is always the root
+            if (i == 0 || context == null) {
+                context = context(nWords);
+            } else if (n > 1) {
+                NgramStore.Context next = context.next(words[i-1]);
+                context = next != null ? next : context(nWords);
+            }
+            
+            // One walk serves both the n-gram's count and its context's count
+            double logProbability = Math.log(goodTuringSmoothedProbability(context, words[i]));
+            if (logProbabilities != null) {
+                logProbabilities[i] = logProbability;
+            }
+            total += logProbability;
+        }
+        metrics.scored(start);
+        return total;
+    }
+    
+    // Call once training is done: works out everything the query methods
+    // need up front, so that no query ever changes the model
+    public void freeze()
+    {
+        clearContextCache();
+        makeGoodTuringCounts();
+        ngc.makeSamplers();
+        ngc.linkContexts();
+        samplersAvailable = true;
+        reportSizes();
+        if (kneserNey != null) {
+            // Only kept up to date for callers that asked for it
+            freezeKneserNey();
+        }
+    }
+    
+    // Builds the Kneser-Ney model over all orders that kneserNeySmoothedProbability
+    // needs. It holds a trie as big as the counts, so freeze() leaves it out
+    // until this is called; after that, every freeze() rebuilds it
+    public void freezeKneserNey()
+    {
+        kneserNey = new BackoffModel(this, BackoffModel.Scheme.KNESER_NEY);
+    }
+    
+    // Walks the store for its size gauges, if anyone is watching
+    private void reportSizes()
+    {
+        if (metrics.enabled) {
+            metrics.size("store.nodes", ngc.nodes());
+            metrics.size("store.maps", ngc.maps());
+            metrics.size("store.bytes", ngc.bytes());
+        }
+    }
+    
+    // A read-only copy of this model that many threads can query at once
+    public FrozenNgram snapshot()
+    {
+        return new FrozenNgram(this);
     }
     
     public void makeGoodTuringCounts()
     {
         // Generate good turing counts in the NgramCounter
-        ngc.makeGoodTuringCounts();
+        goodTuringTable = new GoodTuringTable(numberOfNgramsWithCount, numTrainingNgrams);
+        ngc.makeGoodTuringCounts(goodTuringTable);
         goodTuringCountsAvailable = true;
     }
     
+    // Writes the model in the binary format read by BinaryModel
+    public void save(String filename) throws IOException
+    {
+        save(filename, 0);
+    }
+    
+    // Same, with counts stored as codes of countBits bits (8 or 16; 0 for
+    // exact counts)
+    public void save(String filename, int countBits) throws IOException
+    {
+        NgramSorter sorter = new NgramSorter(n);
+        ngc.forEachNgram(sorter);
+        ModelWriter writer = new ModelWriter(filename, n, vocab, numberOfNgramsWithCount,
+                                             numTrainingNgrams, vocabSize, countBits);
+        sorter.writeTo(writer);
+        writer.close();
+    }
+    
+    // Writes the model in the ARPA format other LM tools read, smoothed
+    // with the given scheme (see BackoffModel)
+    public void writeArpa(String filename, BackoffModel.Scheme scheme) throws IOException
+    {
+        if (scheme == BackoffModel.Scheme.KNESER_NEY && kneserNey != null) {
+            kneserNey.writeArpa(filename);
+        } else {
+            new BackoffModel(this, scheme).writeArpa(filename);
+        }
+    }
+    
     public String getSentence()
     {
+        return getSentence(new SplittableRandom());
+    }
+    
+    // Generates a sentence; the same seeded random gives the same sentences
+    public String getSentence(SplittableRandom random)
+    {
+        if (!samplersAvailable) {
+            throw new IllegalStateException("Call freeze() after training to make the samplers");
+        }
         StringBuilder sentence = new StringBuilder();
         
         // The array of words we are using as context
         // The last slot is what we are trying to fill
-        String[] words = new String[n];
+        int[] words = new int[n];
         
         // Fill up the words array with START symbols
         for (int i = 0; i < n; i++) {
@@ -185,12 +592,17 @@ public class Ngram
         }
         
         // This is simply to indicate that the last symbol what we are trying to figure out
-        words[n-1] = "???";
+        words[n-1] = Vocabulary.UNKNOWN;
         
-        // While we have not reached the end of the sentence and it's of reasonable (400 chars) length
-        while (!words[n-2].equals(".") && sentence.length() < 400) {
+        // While we have not reached the end of the sentence (a period, ? or !)
+        // and it's of reasonable (400 chars) length
+        while (!vocab.endsSentence(words[n-2]) && sentence.length() < 400) {
             // Generate a new word based on context
-            String nextWord = ngc.generateNextWord(words);
+            int nextWord = ngc.generateNextWord(words, random);
+            if (nextWord == Vocabulary.UNKNOWN) {
+                // Nothing ever followed this context
+                break;
+            }
             
             // Update context with the new word
             for (int i = 0; i < n-2; i++) {
@@ -199,50 +611,35 @@ public class Ngram
             words[n-2] = nextWord;
             
             // Update the sentence so far
-            sentence.append(nextWord);
+            sentence.append(vocab.word(nextWord));
             sentence.append(' ');
         }
         
         return sentence.toString();
     }
     
-    public double perplexity(Set<String> testSamples)
+    public double perplexity(Iterable<String> testSamples)
     {
-        int wordCount = 0; // size of the test set
-        Stack<Double> probabilities = new Stack<Double>(); // collection of probabilities to multiply
+        return evaluate(testSamples).perplexity();
+    }
+    
+    // Scores every token of the test set with good turing probabilities
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples)
+    {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator();
         
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
-        String[] nWords = new String[n];
-        for (String testSample : testSamples) {
-            Matcher matcher = pattern.matcher(testSample);
-            
-            for (int i = 0; i < n; i++) {
-                nWords[i] = START;
+        double[] logProbabilities = new double[64];
+        SampleSource.Cursor cursor = Samples.cursor(testSamples);
+        while (cursor.next()) {
+            int[] words = vocab.lookupAll(cursor.sample());
+            if (logProbabilities.length < words.length) {
+                logProbabilities = new double[words.length * 2];
             }
-            
-            while (matcher.find()) {
-                String match = matcher.group();
-                // For each match, nWords is the ngram ending in match
-                for (int i = 0; i < n-1; i++) {
-                    nWords[i] = nWords[i+1];
-                }
-                nWords[n-1] = match;
-                
-                // Find the probability of the n-gram
-                probabilities.push(goodTuringSmoothedProbability(nWords));
-                wordCount++;
+            scoreSentence(words, logProbabilities);
+            for (int i = 0; i < words.length; i++) {
+                evaluator.addLogProbability(logProbabilities[i], words[i] == Vocabulary.UNKNOWN, cursor.times());
             }
         }
-        
-        // perplexity = ((P1 * P2 * ... * Pn) ^ (1/n)) ^ -1
-        //            = (P1^(1/n) * P2^(1/n) * ... * Pn^(1/n)) ^ -1
-        double product = 1;
-        double power = 1.0/wordCount;
-        while (!probabilities.empty()) {
-            product *= Math.pow(probabilities.pop(), power);
-        }
-        double perplexity = 1 / product;
-        return perplexity;
+        return evaluator;
     }
 }
\ No newline at end of file
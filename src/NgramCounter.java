@@ -1,20 +1,23 @@
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.SplittableRandom;
 
-public class NgramCounter
+public class NgramCounter implements NgramStore, NgramStore.Context
 {
     public int level; // level into the tree (root = highest numbered level)
-    public HashMap<String, NgramCounter> map; // links to child nodes, each link is the next word
+    public IntMap<NgramCounter> map; // links to child nodes, each link is the next word's id
     public double count; // leaf node's count for an n-gram
     
     // For Good Turing Smoothing Counts
     public double gtcount; // leaf nodes' good-turing count for an n-gram
-    public HashMap<Double, Double> numberOfNgramsWithCount; // // The number of ngrams that occur x times
     
-    public NgramCounter(int level, HashMap<Double, Double> numberOfNgramsWithCount)
+    // For generating sentences
+    public AliasSampler sampler; // level 1 nodes: draws the next word, made by makeSamplers()
+    
+    // For scoring sentences
+    public NgramCounter suffix; // inner nodes: the node for our words after the first, made by linkContexts()
+    
+    public NgramCounter(int level)
     {
         this.level = level;
-        this.numberOfNgramsWithCount = numberOfNgramsWithCount;
         
         if (level == 0) {
             // There are no links to child nodes, we are a leaf node
@@ -23,36 +26,40 @@ public class NgramCounter
             this.count = 0.0;
         } else {
             // We are not a leaf node, set up child node link hash.
-            this.map = new HashMap<String, NgramCounter>();
+            this.map = new IntMap<NgramCounter>();
         }
     }
     
-    public double insert(String[] ngram)
+    public double insert(int[] ngram)
+    {
+        return insert(ngram, 1.0);
+    }
+    
+    public double insert(int[] ngram, double times)
     {
         // Keep track of level 1 counts
         if (level == 1) {
-            count++;
+            count += times;
+            sampler = null; // out of date, makeSamplers() will rebuild it
         }
         
         // Recursive base case - If this is a leaf, increment the count
         if (level == 0) {
-            count++;
+            count += times;
             return count;
         }
         
         // Recursive step - Find/create the next node to travel to and recurse
-        NgramCounter next;
-        if (map.containsKey(ngram[ngram.length-level])) {
-            next = map.get(ngram[ngram.length-level]);
-        } else {
-            next = new NgramCounter(level-1, numberOfNgramsWithCount);
+        NgramCounter next = map.get(ngram[ngram.length-level]);
+        if (next == null) {
+            next = new NgramCounter(level-1);
             map.put(ngram[ngram.length-level], next);
         }
         
-        return next.insert(ngram);
+        return next.insert(ngram, times);
     }
     
-    public double count(String[] ngram)
+    public double count(int[] ngram)
     {
         // Recursive base case - If this is a leaf, return the count
         if (level == 0) {
@@ -66,7 +73,7 @@ public class NgramCounter
         return map.get(ngram[ngram.length-level]).count(ngram);
     }
     
-    public double level1Count(String[] ngram)
+    public double level1Count(int[] ngram)
     {
         // Recursive base case - One level above leaf nodes, sum all counts of leaf nodes
         if (level == 1) {
@@ -80,60 +87,216 @@ public class NgramCounter
         return map.get(ngram[ngram.length-level]).level1Count(ngram);
     }
     
-    public String generateNextWord(String[] ngram)
+    public int generateNextWord(int[] ngram, SplittableRandom random)
     {
-        // Recursive base case - One level above leaf nodes, find a random next word based on counts
+        // Recursive base case - One level above leaf nodes, draw a next word based on counts
         if (level == 1) {
-            double totalCountForLevel = level1Count(ngram);
-            
-            // Generate a random distance into the counts to take a word from
-            double rand = Math.random() * totalCountForLevel;
-            
-            // Go through the possible words and see how far our random number gets us
-            Iterator<String> i = map.keySet().iterator();
-            String nextWord = "";
-            while (i.hasNext() && rand >= 0) {
-                nextWord = i.next();
-                rand -= map.get(nextWord).count(ngram);
-            }
-            
-            return nextWord;
+            return sampler == null ? Vocabulary.UNKNOWN : sampler.sample(random);
         }
         
         // Recursive step - Find the next node to travel to and recurse
-        return map.get(ngram[ngram.length-level]).generateNextWord(ngram);
+        NgramCounter next = map.get(ngram[ngram.length-level]);
+        if (next == null) {
+            // Nothing ever followed this context
+            return Vocabulary.UNKNOWN;
+        }
+        return next.generateNextWord(ngram, random);
+    }
+    
+    // Build the next-word sampler of every level 1 node (that doesn't have an up to date one) from the leaf counts
+    public void makeSamplers()
+    {
+        if (level == 1) {
+            if (sampler != null) {
+                return;
+            }
+            int[] words = new int[map.size()];
+            double[] weights = new double[map.size()];
+            int i = 0;
+            for (int slot = 0; slot < map.capacity(); slot++) {
+                NgramCounter ngc = map.valueAt(slot);
+                if (ngc != null) {
+                    words[i] = map.keyAt(slot);
+                    weights[i++] = ngc.count;
+                }
+            }
+            sampler = new AliasSampler(words, weights);
+            return;
+        }
+        
+        // Recursive step - Recurse to each child
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                ngc.makeSamplers();
+            }
+        }
+    }
+    
+    // Level 1 nodes are the contexts, so this returns the one reached by the first n-1 words
+    public NgramStore.Context context(int[] ngram)
+    {
+        NgramCounter node = this;
+        while (node.level > 1) {
+            node = node.map.get(ngram[ngram.length-node.level]);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+    
+    // As a context (level 1 nodes only)
+    public double level1Count()
+    {
+        return count;
+    }
+    
+    public double level1GTCount()
+    {
+        return gtcount;
+    }
+    
+    public double count(int word)
+    {
+        NgramCounter leaf = map.get(word);
+        return leaf == null ? 0.0 : leaf.count;
+    }
+    
+    public double gtcount(int word)
+    {
+        NgramCounter leaf = map.get(word);
+        return leaf == null ? 0.0 : leaf.gtcount;
+    }
+    
+    public NgramStore.Context next(int word)
+    {
+        // Our suffix is one level up, so its child for word is a level 1 node
+        return suffix == null ? null : suffix.map.get(word);
     }
     
-    // Generate Good Turing Counts based on original counts and the numberOfNgramsWithCount map
-    public void makeGoodTuringCounts()
+    // Called on the root, whose children's suffix is the root itself
+    public void linkContexts()
+    {
+        linkChildren(true);
+    }
+    
+    // Links each child to the child of our suffix for the same word (every
+    // suffix is set before its children's are looked up from it)
+    private void linkChildren(boolean root)
+    {
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null && ngc.level > 0) {
+                ngc.suffix = root ? this : suffix == null ? null : suffix.map.get(map.keyAt(slot));
+                ngc.linkChildren(false);
+            }
+        }
+    }
+    
+    // Generate Good Turing Counts based on original counts and the precomputed table
+    public void makeGoodTuringCounts(GoodTuringTable table)
     {
         // One level above leaf nodes, do the same as for any other non-leaf, but set the level 1 gtcount
         if (level == 1) {
             gtcount = 0;
-            for (NgramCounter ngc : map.values()) {
-                ngc.makeGoodTuringCounts();
-                gtcount += ngc.gtcount;
+            for (int slot = 0; slot < map.capacity(); slot++) {
+                NgramCounter ngc = map.valueAt(slot);
+                if (ngc != null) {
+                    ngc.makeGoodTuringCounts(table);
+                    gtcount += ngc.gtcount;
+                }
             }
             return;
         }
         
         // On leaf level, set the gtcount
         if (level == 0) {
-            if (!numberOfNgramsWithCount.containsKey(count+1)) {
-                numberOfNgramsWithCount.put(count+1, 0.0);
-            }
-            // c* = (c+1) * N(c+1) / N(c)
-            gtcount = (count+1)*(numberOfNgramsWithCount.get(count+1.0))/(numberOfNgramsWithCount.get(count));
+            gtcount = table.count(count);
             return;
         }
         
         // Recursive step - Recurse to each child
-        for (NgramCounter ngc : map.values()) {
-            ngc.makeGoodTuringCounts();
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                ngc.makeGoodTuringCounts(table);
+            }
+        }
+    }
+    
+    public void forEachNgram(NgramStore.Visitor visitor)
+    {
+        forEachNgram(visitor, new int[level]);
+    }
+    
+    private void forEachNgram(NgramStore.Visitor visitor, int[] ngram)
+    {
+        // Recursive base case - ngram is filled in all the way down to this leaf
+        if (level == 0) {
+            visitor.visit(ngram, count);
+            return;
+        }
+        
+        // Recursive step - Fill in each child's word and recurse
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                ngram[ngram.length-level] = map.keyAt(slot);
+                ngc.forEachNgram(visitor, ngram);
+            }
+        }
+    }
+    
+    // Nodes in the subtree rooted here
+    public long nodes()
+    {
+        long nodes = 1;
+        for (int slot = 0; map != null && slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                nodes += ngc.nodes();
+            }
+        }
+        return nodes;
+    }
+    
+    public long maps()
+    {
+        if (map == null) {
+            return 0;
+        }
+        long maps = 1;
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                maps += ngc.maps();
+            }
+        }
+        return maps;
+    }
+    
+    public long bytes()
+    {
+        // Header, level, map, count, gtcount, sampler and suffix
+        long bytes = 48;
+        if (sampler != null) {
+            bytes += sampler.bytes();
+        }
+        if (map == null) {
+            return bytes;
+        }
+        bytes += map.bytes();
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            NgramCounter ngc = map.valueAt(slot);
+            if (ngc != null) {
+                bytes += ngc.bytes();
+            }
         }
+        return bytes;
     }
     
-    public double gtcount(String[] ngram)
+    public double gtcount(int[] ngram)
     {
         // Recursive base case - If this is a leaf, return the count
         if (level == 0) {
@@ -147,7 +310,7 @@ public class NgramCounter
         return map.get(ngram[ngram.length-level]).gtcount(ngram);
     }
     
-    public double level1GTCount(String[] ngram)
+    public double level1GTCount(int[] ngram)
     {
         // Recursive base case - One level above leaf nodes, sum all counts of leaf nodes
         if (level == 1) {
@@ -5,15 +5,15 @@
 public class NgramParser {
 		
 		public Element rootElement;
-		public HashSet<String> samples = new HashSet<String>();
+		public ArrayList<String> samples = new ArrayList<String>(); // Every sentence, repeats included (see DedupSamples)
 		public boolean useUpperCase;
 		
 		public static void main(String[] args){
 			NgramParser p = new NgramParser("data/fbistest.xml");
-			HashSet<String> x = p.parse();
-			System.out.println(x.toArray()[0]);
+			ArrayList<String> x = p.parse();
+			System.out.println(x.get(0));
 			System.out.println();
-			System.out.println(x.toArray()[1]);
+			System.out.println(x.get(1));
 		}
 
 		public NgramParser(String filename){
@@ -34,7 +34,7 @@ public class NgramParser {
             this.useUpperCase = useUpperCase;
         }
 		
-		public HashSet<String> parse(){
+		public ArrayList<String> parse(){
 			NodeList docnodes = rootElement.getElementsByTagName("DOC");
 			for(int i = 0; i<docnodes.getLength(); i++){
 				Element doc = (Element) docnodes.item(i);
@@ -46,13 +46,17 @@ public class NgramParser {
 		}
 
 		private String[] parseTextNode(Node node){
-			String text = node.getNodeValue();
-			text = text.replaceAll("\\.\\s", "\\.\\. ");
-			text = text.trim();
-			if(!useUpperCase){
-			    text = text.toLowerCase();
-			}
-			String[] textArray = text.split("\\.\\s");
-			return textArray;
+			return splitSentences(node.getNodeValue(), useUpperCase);
+		}
+
+		// The sentences of text (see SentenceSegmenter), lowercased unless useUpperCase
+		public static String[] splitSentences(String text, final boolean useUpperCase){
+			final ArrayList<String> sentences = new ArrayList<String>();
+			SentenceSegmenter.segment(text, new SentenceSegmenter.Sink() {
+				public void sentence(CharSequence text, int start, int end){
+					sentences.add(SentenceSegmenter.toString(text, start, end, useUpperCase));
+				}
+			});
+			return sentences.toArray(new String[sentences.size()]);
 		}
 }
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Collects n-grams with their counts in flat arrays and hands them to a
+ * ModelWriter in the sorted order it needs. The models' own count
+ * structures are hash-ordered, so everything they save passes through here.
+ * ExternalCounter also uses one to sort each run it spills to disk.
+ */
+public class NgramSorter implements NgramStore.Visitor
+{
+    public int n; // (as in n-gram)
+    private int[] words; // n word ids per n-gram, back to back
+    private double[] counts;
+    private int size;
+
+    public NgramSorter(int n)
+    {
+        this(n, 1024);
+    }
+
+    // Room for capacity n-grams before the arrays have to grow
+    public NgramSorter(int n, int capacity)
+    {
+        this.n = n;
+        this.words = new int[n * capacity];
+        this.counts = new double[capacity];
+    }
+
+    public void visit(int[] ngram, double count)
+    {
+        add(ngram, count);
+    }
+
+    public void add(int[] ngram, double count)
+    {
+        if (size == counts.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        System.arraycopy(ngram, 0, words, size * n, n);
+        counts[size++] = count;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // Copies the i-th n-gram into ngram
+    public void get(int i, int[] ngram)
+    {
+        System.arraycopy(words, i * n, ngram, 0, n);
+    }
+
+    public double count(int i)
+    {
+        return counts[i];
+    }
+
+    // Forgets every n-gram, keeping the arrays for reuse
+    public void clear()
+    {
+        size = 0;
+    }
+
+    // Puts the n-grams in sorted order, merging repeats into one n-gram with
+    // their counts summed
+    public void sort()
+    {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[size], 0, size);
+
+        int[] sortedWords = new int[words.length];
+        double[] sortedCounts = new double[counts.length];
+        int distinct = 0;
+        for (int i : order) {
+            if (distinct > 0 && equal(words, i * n, sortedWords, (distinct-1) * n)) {
+                sortedCounts[distinct-1] += counts[i];
+            } else {
+                System.arraycopy(words, i * n, sortedWords, distinct * n, n);
+                sortedCounts[distinct++] = counts[i];
+            }
+        }
+        words = sortedWords;
+        counts = sortedCounts;
+        size = distinct;
+    }
+
+    private boolean equal(int[] a, int startA, int[] b, int startB)
+    {
+        for (int i = 0; i < n; i++) {
+            if (a[startA + i] != b[startB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sends every n-gram to writer in sorted order
+    public void writeTo(ModelWriter writer) throws IOException
+    {
+        sort();
+        int[] ngram = new int[n];
+        for (int i = 0; i < size; i++) {
+            get(i, ngram);
+            writer.add(ngram, counts[i]);
+        }
+    }
+
+    // Merge sort of n-gram indexes by their words
+    private void sort(int[] order, int[] scratch, int from, int to)
+    {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(order, scratch, from, middle);
+        sort(order, scratch, middle, to);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(order[left], order[right]) <= 0)) {
+                scratch[i] = order[left++];
+            } else {
+                scratch[i] = order[right++];
+            }
+        }
+        System.arraycopy(scratch, from, order, from, to - from);
+    }
+
+    private int compare(int a, int b)
+    {
+        for (int i = 0; i < n; i++) {
+            int wordA = words[a * n + i];
+            int wordB = words[b * n + i];
+            if (wordA != wordB) {
+                return wordA < wordB ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.SplittableRandom;
+
+/*
+ * The operations Ngram needs from a structure holding n-gram counts. All
+ * n-grams passed in are int[] word ids of length n (see Vocabulary).
+ */
+public interface NgramStore
+{
+    // Which implementation Ngram should build
+    public enum Type
+    {
+        TRIE,   // NgramCounter: one object and child map per trie node
+        PACKED; // PackedNgramStore: flat primitive arrays and one open-addressing table
+
+        public NgramStore create(int n)
+        {
+            if (this == PACKED) {
+                return new PackedNgramStore(n);
+            }
+            return new NgramCounter(n);
+        }
+    }
+
+    // The counts following one context (the first n-1 words of an n-gram),
+    // found with a single walk so several lookups can share it
+    public interface Context
+    {
+        // Count of the context (sum of the counts of its n-grams)
+        public double level1Count();
+
+        public double level1GTCount();
+
+        // Count of the n-gram made of the context followed by word
+        public double count(int word);
+
+        public double gtcount(int word);
+
+        // The context one word further along a sentence: this one's words
+        // after the first, followed by word. null if it was never seen, or
+        // if it can't be reached without a walk (before linkContexts(), or
+        // for nodes inserted since); the caller then walks with context()
+        public Context next(int word);
+    }
+
+    // Receives each n-gram with its count; the array is reused between calls
+    public interface Visitor
+    {
+        public void visit(int[] ngram, double count);
+    }
+
+    // Adds one occurrence of ngram and returns its new count
+    public double insert(int[] ngram);
+
+    // Adds times occurrences of ngram and returns its new count
+    public double insert(int[] ngram, double times);
+
+    // Count of the full n-gram
+    public double count(int[] ngram);
+
+    // Count of the first n-1 words as a context (sum of the counts of its n-grams)
+    public double level1Count(int[] ngram);
+
+    public double gtcount(int[] ngram);
+
+    public double level1GTCount(int[] ngram);
+
+    // The context made of the first n-1 words of ngram, or null if it was never seen
+    public Context context(int[] ngram);
+
+    // Draws the last word of ngram given the first n-1 words (Vocabulary.UNKNOWN
+    // if nothing followed them in training); needs makeSamplers() first
+    public int generateNextWord(int[] ngram, SplittableRandom random);
+
+    // Precompute a sampler for every context so generateNextWord is O(n); after
+    // more inserts, only the contexts they went through are rebuilt
+    public void makeSamplers();
+
+    // Fill in gtcount and level1GTCount from the raw counts; counts are left untouched
+    public void makeGoodTuringCounts(GoodTuringTable table);
+
+    // Links every inner node to the node for its words after the first, so
+    // Context.next is one link and one child lookup instead of a walk
+    public void linkContexts();
+
+    // Calls visitor once for every distinct n-gram
+    public void forEachNgram(Visitor visitor);
+
+    // Trie nodes, the root included
+    public long nodes();
+
+    // Tables of child links: one per inner node of an NgramCounter, one in
+    // all for a PackedNgramStore
+    public long maps();
+
+    // Rough heap bytes held, samplers included (see ModelMetrics.arrayBytes)
+    public long bytes();
+}
@@ -0,0 +1,391 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+ * NgramStore laid out in flat primitive arrays instead of one NgramCounter
+ * object (and child map) per trie node.
+ *
+ * Every prefix of an inserted n-gram is a node with an int id (the root is 0).
+ * The link from a node to the child for the next word is found in a single
+ * open-addressing table whose key packs (parent id, word id) into a long, so
+ * walking an n-gram is n probes into one array. Per-node data lives in
+ * parallel arrays indexed by node id.
+ */
+public class PackedNgramStore implements NgramStore
+{
+    public static final int NONE = -1; // Missing node / end of a sibling list
+    private static final long EMPTY = -1L; // Unused table slot (real keys are never negative)
+
+    public int n; // Height of the trie (as in n-gram)
+
+    // Per-node arrays, indexed by node id
+    private int nodes; // Number of node ids handed out
+    private int[] word; // Word id on the link into the node
+    private int[] parent;
+    private int[] firstChild; // Children form a linked list through nextSibling
+    private int[] nextSibling;
+    private byte[] depth; // Distance from the root (n for full n-grams)
+    private long[] count; // Number of n-grams inserted through the node
+    private double[] gtcount; // Good-Turing count (leaves) or sum of children's (contexts)
+    private IntMap<AliasSampler> samplers; // Context node => next-word sampler
+    private int[] suffix; // Node for the words after the first (inner nodes), made by linkContexts()
+
+    // (parent, word) => child table
+    private long[] keys;
+    private int[] children;
+    private int tableSize;
+
+    public PackedNgramStore(int n)
+    {
+        this.n = n;
+
+        int capacity = 1024;
+        this.word = new int[capacity];
+        this.parent = new int[capacity];
+        this.firstChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.depth = new byte[capacity];
+        this.count = new long[capacity];
+
+        this.keys = new long[capacity * 2];
+        this.children = new int[capacity * 2];
+        Arrays.fill(keys, EMPTY);
+
+        // The root
+        newNode(NONE, NONE);
+    }
+
+    public double insert(int[] ngram)
+    {
+        return insert(ngram, 1.0);
+    }
+
+    // Counts are whole numbers here, so times must be too
+    public double insert(int[] ngram, double times)
+    {
+        long increment = (long) times;
+        if (increment != times) {
+            throw new IllegalArgumentException("PackedNgramStore only counts whole occurrences, not " + times);
+        }
+        int node = 0;
+        int context = 0;
+        count[node] += increment;
+        for (int i = 0; i < n; i++) {
+            context = node;
+            int next = child(node, ngram[i]);
+            if (next == NONE) {
+                next = addChild(node, ngram[i]);
+            }
+            node = next;
+            count[node] += increment;
+        }
+        if (samplers != null && samplers.get(context) != null) {
+            // Out of date, makeSamplers() will rebuild it
+            samplers.put(context, null);
+        }
+        return count[node];
+    }
+
+    public double count(int[] ngram)
+    {
+        int node = find(ngram, n);
+        return node == NONE ? 0.0 : count[node];
+    }
+
+    public double level1Count(int[] ngram)
+    {
+        int node = find(ngram, n-1);
+        return node == NONE ? 0.0 : count[node];
+    }
+
+    public double gtcount(int[] ngram)
+    {
+        int node = find(ngram, n);
+        return node == NONE || gtcount == null ? 0.0 : gtcount[node];
+    }
+
+    public double level1GTCount(int[] ngram)
+    {
+        int node = find(ngram, n-1);
+        return node == NONE || gtcount == null ? 0.0 : gtcount[node];
+    }
+
+    public NgramStore.Context context(int[] ngram)
+    {
+        int node = find(ngram, n-1);
+        return node == NONE ? null : new NodeContext(node);
+    }
+
+    // A context node, read through the store's arrays
+    private class NodeContext implements NgramStore.Context
+    {
+        private final int node;
+
+        NodeContext(int node)
+        {
+            this.node = node;
+        }
+
+        public double level1Count()
+        {
+            return count[node];
+        }
+
+        public double level1GTCount()
+        {
+            return gtcount == null ? 0.0 : gtcount[node];
+        }
+
+        public double count(int w)
+        {
+            int leaf = child(node, w);
+            return leaf == NONE ? 0.0 : count[leaf];
+        }
+
+        public double gtcount(int w)
+        {
+            int leaf = child(node, w);
+            return leaf == NONE || gtcount == null ? 0.0 : gtcount[leaf];
+        }
+
+        public NgramStore.Context next(int w)
+        {
+            if (suffix == null || suffix[node] == NONE) {
+                return null;
+            }
+            int next = child(suffix[node], w);
+            return next == NONE ? null : new NodeContext(next);
+        }
+    }
+
+    public int generateNextWord(int[] ngram, SplittableRandom random)
+    {
+        int context = find(ngram, n-1);
+        AliasSampler sampler = context == NONE || samplers == null ? null : samplers.get(context);
+        return sampler == null ? Vocabulary.UNKNOWN : sampler.sample(random);
+    }
+
+    public void makeSamplers()
+    {
+        if (samplers == null) {
+            samplers = new IntMap<AliasSampler>();
+        }
+        for (int node = 0; node < nodes; node++) {
+            if (depth[node] != n-1 || samplers.get(node) != null) {
+                continue;
+            }
+            int size = 0;
+            for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+                size++;
+            }
+            int[] words = new int[size];
+            double[] weights = new double[size];
+            int i = 0;
+            for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+                words[i] = word[c];
+                weights[i++] = count[c];
+            }
+            samplers.put(node, new AliasSampler(words, weights));
+        }
+    }
+
+    public void makeGoodTuringCounts(GoodTuringTable table)
+    {
+        gtcount = new double[nodes];
+        // Children always have higher ids than their parents, so a backwards
+        // pass sees every leaf before its context
+        for (int node = nodes-1; node > 0; node--) {
+            if (depth[node] != n) {
+                continue;
+            }
+            gtcount[node] = table.count(count[node]);
+            gtcount[parent[node]] += gtcount[node];
+        }
+    }
+
+    public void linkContexts()
+    {
+        suffix = new int[count.length];
+        suffix[0] = NONE;
+        // Parents have lower ids than their children, so each parent's suffix
+        // is known by the time its children look theirs up from it
+        for (int node = 1; node < nodes; node++) {
+            if (depth[node] == n) {
+                suffix[node] = NONE;
+            } else if (depth[node] == 1) {
+                suffix[node] = 0;
+            } else {
+                int parentSuffix = suffix[parent[node]];
+                suffix[node] = parentSuffix == NONE ? NONE : child(parentSuffix, word[node]);
+            }
+        }
+    }
+
+    public void forEachNgram(NgramStore.Visitor visitor)
+    {
+        forEachNgram(visitor, 0, new int[n]);
+    }
+
+    private void forEachNgram(NgramStore.Visitor visitor, int node, int[] ngram)
+    {
+        if (depth[node] == n) {
+            visitor.visit(ngram, count[node]);
+            return;
+        }
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+            ngram[depth[node]] = word[c];
+            forEachNgram(visitor, c, ngram);
+        }
+    }
+
+    // Number of trie nodes, including the root
+    public int size()
+    {
+        return nodes;
+    }
+
+    public long nodes()
+    {
+        return nodes;
+    }
+
+    public long maps()
+    {
+        return 1;
+    }
+
+    public long bytes()
+    {
+        int capacity = word.length;
+        long bytes = 4 * ModelMetrics.arrayBytes(capacity, 4) + ModelMetrics.arrayBytes(capacity, 1) +
+                     ModelMetrics.arrayBytes(capacity, 8) +
+                     ModelMetrics.arrayBytes(keys.length, 8) + ModelMetrics.arrayBytes(children.length, 4);
+        if (gtcount != null) {
+            bytes += ModelMetrics.arrayBytes(gtcount.length, 8);
+        }
+        if (suffix != null) {
+            bytes += ModelMetrics.arrayBytes(suffix.length, 4);
+        }
+        if (samplers != null) {
+            bytes += samplers.bytes();
+            for (int slot = 0; slot < samplers.capacity(); slot++) {
+                AliasSampler sampler = samplers.valueAt(slot);
+                if (sampler != null) {
+                    bytes += sampler.bytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Walks the first length words of ngram, returning the node or NONE
+    private int find(int[] ngram, int length)
+    {
+        int node = 0;
+        for (int i = 0; i < length && node != NONE; i++) {
+            node = child(node, ngram[i]);
+        }
+        return node;
+    }
+
+    private int child(int node, int w)
+    {
+        if (w < 0) {
+            return NONE;
+        }
+        long key = key(node, w);
+        int mask = keys.length - 1;
+        for (int slot = slot(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return children[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return NONE;
+            }
+        }
+    }
+
+    private int addChild(int node, int w)
+    {
+        int child = newNode(node, w);
+        nextSibling[child] = firstChild[node];
+        firstChild[node] = child;
+        depth[child] = (byte) (depth[node] + 1);
+
+        if ((tableSize + 1) * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        long key = key(node, w);
+        int mask = keys.length - 1;
+        int slot = slot(key) & mask;
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        children[slot] = child;
+        tableSize++;
+        return child;
+    }
+
+    private int newNode(int parentNode, int w)
+    {
+        if (nodes == count.length) {
+            int capacity = nodes * 2;
+            word = Arrays.copyOf(word, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            count = Arrays.copyOf(count, capacity);
+            if (suffix != null) {
+                suffix = Arrays.copyOf(suffix, capacity);
+            }
+        }
+        int node = nodes++;
+        if (gtcount != null && node == gtcount.length) {
+            // Inserted after makeGoodTuringCounts: like a TRIE node, its count is 0 until the next one
+            gtcount = Arrays.copyOf(gtcount, count.length);
+        }
+        word[node] = w;
+        parent[node] = parentNode;
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        count[node] = 0;
+        if (suffix != null) {
+            // Linked by the next linkContexts(); until then next() walks
+            suffix[node] = NONE;
+        }
+        return node;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldChildren = children;
+        keys = new long[capacity];
+        children = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                children[slot] = oldChildren[i];
+            }
+        }
+    }
+
+    private static long key(int node, int w)
+    {
+        return ((long) node << 32) | (w & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
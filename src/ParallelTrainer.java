@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spreads samples across one worker thread per shard. The calling thread
+ * reads the samples (so a streamed corpus is still only read once) and hands
+ * them out in batches through a bounded queue; each worker counts its batches
+ * into its own shard, so no counts are shared between threads. Merging the
+ * shards afterwards is left to the caller.
+ */
+public class ParallelTrainer
+{
+    // A model that counts samples without maintaining any global statistics
+    public interface Shard
+    {
+        public void countSample(String sample);
+    }
+
+    public static final int BATCH_SIZE = 1024; // Samples handed to a worker at a time
+
+    public static void run(Iterable<String> samples, Shard[] shards)
+    {
+        final BlockingQueue<ArrayList<String>> queue =
+            new ArrayBlockingQueue<ArrayList<String>>(shards.length * 2);
+        final ArrayList<String> done = new ArrayList<String>(); // Tells a worker to stop
+
+        ExecutorService pool = Executors.newFixedThreadPool(shards.length);
+        ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+        for (final Shard shard : shards) {
+            workers.add(pool.submit(new Runnable() {
+                public void run()
+                {
+                    try {
+                        ArrayList<String> batch;
+                        while ((batch = queue.take()) != done) {
+                            for (String sample : batch) {
+                                shard.countSample(sample);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+
+        try {
+            ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+            for (String sample : samples) {
+                batch.add(sample);
+                if (batch.size() == BATCH_SIZE) {
+                    put(queue, batch, workers);
+                    batch = new ArrayList<String>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                put(queue, batch, workers);
+            }
+            for (int i = 0; i < shards.length; i++) {
+                put(queue, done, workers);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training worker failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Queue a batch, giving up if every worker has died and the queue will never drain
+    private static void put(BlockingQueue<ArrayList<String>> queue, ArrayList<String> batch,
+                            ArrayList<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            boolean allDone = true;
+            for (Future<?> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get(); // rethrows the worker's failure, if any
+                } else {
+                    allDone = false;
+                }
+            }
+            if (allDone) {
+                throw new IllegalStateException("All training workers stopped early");
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Accumulates a test set's token probabilities as they arrive and reports
+ * perplexity, cross-entropy and the out-of-vocabulary rate.
+ *
+ * Only the sum of natural-log probabilities is kept (with Kahan compensation,
+ * since it adds millions of small terms), so memory use doesn't depend on the
+ * size of the test set and nothing underflows the way a running product does.
+ *
+ *   cross-entropy = -(1/N) * sum(log2 P(wi))
+ *   perplexity    = 2 ^ cross-entropy = exp(-(1/N) * sum(ln P(wi)))
+ */
+public class PerplexityEvaluator
+{
+    private double logSum; // Sum of ln P(wi) over all tokens
+    private double compensation; // Low-order bits lost from logSum so far
+    private long tokens; // Number of tokens scored (the N above)
+    private long oovTokens; // How many of those were out of vocabulary
+
+    // Adds one token's probability; oov says whether the token was out of vocabulary
+    public void add(double probability, boolean oov)
+    {
+        addLogProbability(Math.log(probability), oov);
+    }
+
+    // Same as add, for a token whose natural-log probability is already known
+    public void addLogProbability(double logProbability, boolean oov)
+    {
+        addLogProbability(logProbability, oov, 1);
+    }
+
+    // Same as addLogProbability, for a token that occurs times times (from a
+    // sentence that does, see SampleSource)
+    public void addLogProbability(double logProbability, boolean oov, long times)
+    {
+        double y = logProbability * times - compensation;
+        double t = logSum + y;
+        compensation = (t - logSum) - y;
+        logSum = t;
+        tokens += times;
+        if (oov) {
+            oovTokens += times;
+        }
+    }
+
+    public long tokens()
+    {
+        return tokens;
+    }
+
+    public long oovTokens()
+    {
+        return oovTokens;
+    }
+
+    // Sum of the natural-log probabilities of all tokens
+    public double logProbability()
+    {
+        return logSum;
+    }
+
+    // Average number of bits per token
+    public double crossEntropy()
+    {
+        return -logSum / tokens / Math.log(2);
+    }
+
+    public double perplexity()
+    {
+        return Math.exp(-logSum / tokens);
+    }
+
+    // Fraction of tokens that were out of vocabulary
+    public double oovRate()
+    {
+        return (double) oovTokens / tokens;
+    }
+
+    public String toString()
+    {
+        return "Perplexity of the test set: " + perplexity() + "\n" +
+               "Cross-entropy: " + crossEntropy() + " bits per token\n" +
+               "OOV rate: " + oovRate() + " (" + oovTokens + " of " + tokens + " tokens)";
+    }
+}
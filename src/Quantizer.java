@@ -0,0 +1,124 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Stores doubles as small integer codes into a codebook of at most 2^bits
+ * values, for models that keep millions of probabilities, backoff weights
+ * or counts and can give up a little precision to hold each in one or two
+ * bytes instead of eight.
+ *
+ * The codebook is fitted to the values it will hold with equal-frequency
+ * bins: walking the values in order, each bin takes an equal share of the
+ * weight the bins before it left over, and decodes to its values' weighted
+ * mean. Crowded ranges get narrow bins and values too common to share a bin
+ * get one of their own; with no more distinct values than codes, every
+ * value is kept exactly. Weighting each value by how often it will be read
+ * (an n-gram's count, say) spends the precision where it matters. A value
+ * is encoded as the nearest code.
+ */
+public class Quantizer
+{
+    public final int bits; // Bits needed for a code, 8 or 16
+    private final double[] centers; // Value of each code, ascending
+    private final double[] bounds; // Halfway between each code's value and the next
+
+    // Codebook of the given values, ascending
+    public Quantizer(double[] centers)
+    {
+        if (centers.length == 0 || centers.length > 1 << 16) {
+            throw new IllegalArgumentException("A codebook needs 1 to 65536 values, not " + centers.length);
+        }
+        this.centers = centers;
+        this.bits = centers.length <= 1 << 8 ? 8 : 16;
+        this.bounds = new double[centers.length - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = (centers[i] + centers[i+1]) / 2;
+        }
+    }
+
+    // Fits a codebook of at most 2^bits codes (bits <= 16) to values[0, length)
+    public static Quantizer fit(double[] values, int length, int bits)
+    {
+        double[] weights = new double[length];
+        Arrays.fill(weights, 1.0);
+        return fit(values, weights, length, bits);
+    }
+
+    // Fits a codebook of at most 2^bits codes (bits <= 16) to values[0, length),
+    // values[i] having weight weights[i]
+    public static Quantizer fit(final double[] values, double[] weights, int length, int bits)
+    {
+        Integer[] order = new Integer[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return Double.compare(values[a], values[b]);
+            }
+        });
+        double[] distinct = new double[length];
+        double[] distinctWeights = new double[length];
+        int number = 0;
+        for (int i : order) {
+            if (number == 0 || values[i] != distinct[number-1]) {
+                distinct[number++] = values[i];
+            }
+            distinctWeights[number-1] += weights[i];
+        }
+        return fitDistinct(distinct, distinctWeights, number, bits);
+    }
+
+    // Equal-frequency bins over the distinct ascending values[0, length)
+    private static Quantizer fitDistinct(double[] values, double[] weights, int length, int bits)
+    {
+        if (bits < 1 || bits > 16) {
+            throw new IllegalArgumentException("Codes must have 1 to 16 bits, not " + bits);
+        }
+        if (length == 0) {
+            return new Quantizer(new double[] {0.0});
+        }
+        int codes = 1 << bits;
+        double remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += weights[i];
+        }
+
+        double[] centers = new double[Math.min(codes, length)];
+        int used = 0;
+        for (int i = 0; i < length; ) {
+            double share = remaining / (codes - used);
+            double weight = 0;
+            double sum = 0;
+            // Take at least one value, and stop early enough that every
+            // remaining value can have a code if there are codes to spare
+            do {
+                weight += weights[i];
+                sum += weights[i] * values[i];
+                i++;
+            } while (i < length && weight < share && length - i > codes - used - 1);
+            remaining -= weight;
+            centers[used++] = weight > 0 ? sum / weight : values[i-1];
+        }
+        return new Quantizer(Arrays.copyOf(centers, used));
+    }
+
+    // Code of the value nearest to value
+    public int encode(double value)
+    {
+        int code = Arrays.binarySearch(bounds, value);
+        return code >= 0 ? code : -code - 1;
+    }
+
+    public double decode(int code)
+    {
+        return centers[code];
+    }
+
+    // Number of codes in use
+    public int size()
+    {
+        return centers.length;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Sentences to train on or score, where one sentence can stand for several
+ * occurrences of itself. Iterating over a SampleSource gives every occurrence,
+ * so anything that takes an Iterable<String> counts it correctly; models
+ * that know about multiplicity step through cursor() instead and encode and
+ * count each sentence once, however many times it occurs.
+ *
+ * Samples.cursor() gives a cursor over any Iterable<String>, one occurrence
+ * per sentence, so models don't have to care which kind they were given.
+ */
+public interface SampleSource extends Iterable<String>
+{
+    // One pass over the samples, starting before the first
+    public interface Cursor
+    {
+        // Moves to the next sample; false once there are none left
+        public boolean next();
+
+        // The current sample sentence. It may be a view of the text it was
+        // read from (see CharSpan) that next() points somewhere else, so copy
+        // it with toString() to keep it
+        public CharSequence sample();
+
+        // How many occurrences the current sample stands for (at least 1)
+        public long times();
+    }
+
+    // A new pass over the samples; each call starts again from the beginning
+    public Cursor cursor();
+}
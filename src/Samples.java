@@ -0,0 +1,93 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Base class for sample sources: subclasses only write cursor(), and
+ * iterator() repeats each sample as many times as it occurs.
+ */
+public abstract class Samples implements SampleSource
+{
+    // A cursor over samples, using its own if it is a SampleSource and
+    // otherwise giving each sentence once
+    public static SampleSource.Cursor cursor(Iterable<String> samples)
+    {
+        if (samples instanceof SampleSource) {
+            return ((SampleSource) samples).cursor();
+        }
+        return new OnceEach(samples.iterator());
+    }
+
+    public Iterator<String> iterator()
+    {
+        return new Repeating(cursor());
+    }
+
+    // Each sentence of an Iterable, occurring once
+    private static class OnceEach implements SampleSource.Cursor
+    {
+        private final Iterator<String> samples;
+        private String sample;
+
+        OnceEach(Iterator<String> samples)
+        {
+            this.samples = samples;
+        }
+
+        public boolean next()
+        {
+            if (!samples.hasNext()) {
+                sample = null;
+                return false;
+            }
+            sample = samples.next();
+            return true;
+        }
+
+        public String sample()
+        {
+            return sample;
+        }
+
+        public long times()
+        {
+            return 1;
+        }
+    }
+
+    // Every occurrence of every sample of a cursor
+    private static class Repeating implements Iterator<String>
+    {
+        private final SampleSource.Cursor cursor;
+        private long left; // Occurrences of cursor.sample() not returned yet
+
+        Repeating(SampleSource.Cursor cursor)
+        {
+            this.cursor = cursor;
+        }
+
+        public boolean hasNext()
+        {
+            while (left == 0) {
+                if (!cursor.next()) {
+                    return false;
+                }
+                left = cursor.times();
+            }
+            return true;
+        }
+
+        public String next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            left--;
+            return cursor.sample().toString();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
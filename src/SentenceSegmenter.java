@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/*
+ * Splits a paragraph into sentences in one pass over its chars, reporting
+ * each as a [start, end) range of the paragraph instead of copying it.
+ *
+ * A sentence ends at a run of '.', '?' or '!' (with any closing quotes or
+ * brackets after it) that is followed by whitespace or the end of the text,
+ * and the end-of-sentence chars stay in the sentence as its last token. A
+ * '.' after a common abbreviation doesn't end a sentence: never after a title
+ * like "Mr." or "Gen." or an initial like "J.", and after a lowercase letter
+ * ("m."), a dotted abbreviation ("U.S.", "e.g.") or one like "etc." only when
+ * the next word is capitalized.
+ * Whitespace around sentences is left out of their ranges.
+ */
+public class SentenceSegmenter
+{
+    // Abbreviations that come before a name, so never end a sentence
+    private static final String[] TITLES = {
+        "mr", "mrs", "ms", "dr", "prof", "st", "sr", "jr", "gen", "gov", "sen", "rep", "rev",
+        "lt", "col", "capt", "sgt", "cmdr", "adm", "maj", "mt", "ft", "vs"
+    };
+    // Abbreviations that end a sentence when the next word is capitalized
+    private static final String[] ENDINGS = {
+        "etc", "inc", "corp", "co", "ltd", "bros", "al", "no", "nos",
+        "jan", "feb", "mar", "apr", "jun", "jul", "aug", "sep", "sept", "oct", "nov", "dec"
+    };
+    private static final int LONGEST = 4; // Longest word in TITLES and ENDINGS
+
+    // Receives each sentence in order; text is the paragraph being segmented
+    public interface Sink
+    {
+        public void sentence(CharSequence text, int start, int end);
+    }
+
+    // Turns plain text with a paragraph per line into the sentence per line
+    // that Corpus reads
+    public static void main(String[] args)
+    {
+        if (args.length != 2) {
+            System.out.println("You must supply 2 arguments:\n(1) Text file, a paragraph per line\n" +
+                               "(2) Output file, a sentence per line");
+            System.exit(1);
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(Corpus.open(Paths.get(args[0])),
+                                                                         StandardCharsets.UTF_8));
+            final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]),
+                                                                         StandardCharsets.UTF_8));
+            final IOException[] failure = new IOException[1]; // Sink can't throw it
+            Sink writer = new Sink() {
+                public void sentence(CharSequence text, int start, int end)
+                {
+                    try {
+                        out.append(text, start, end).append('\n');
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            String paragraph;
+            while ((paragraph = in.readLine()) != null && failure[0] == null) {
+                segment(paragraph, writer);
+            }
+            in.close();
+            out.close();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        } catch (IOException ioe) {
+            System.out.println("IO error!");
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Calls sink once for every sentence of text
+    public static void segment(CharSequence text, Sink sink)
+    {
+        int length = text.length();
+        int start = skipWhitespace(text, 0);
+        int i = start;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (!isTerminator(c)) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < length && isTerminator(text.charAt(end))) {
+                end++;
+            }
+            while (end < length && isCloser(text.charAt(end))) {
+                end++;
+            }
+            if (end < length && !isWhitespace(text.charAt(end))) {
+                i = end; // e.g. "3.5", "U.S", "?!x"
+                continue;
+            }
+            if (end - i == 1 && c == '.' && isAbbreviation(text, i, end)) {
+                i = end;
+                continue;
+            }
+            sink.sentence(text, start, end);
+            start = skipWhitespace(text, end);
+            i = start;
+        }
+        int end = length;
+        while (end > start && isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (end > start) {
+            sink.sentence(text, start, end);
+        }
+    }
+
+    // The sentence text[start, end) as a String, lowercased unless useUpperCase
+    public static String toString(CharSequence text, int start, int end, boolean useUpperCase)
+    {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            chars[i - start] = useUpperCase ? c : Character.toLowerCase(c);
+        }
+        return new String(chars);
+    }
+
+    // Whether the '.' at text[dot] (followed by whitespace or the end, at
+    // after) belongs to an abbreviation rather than ending the sentence
+    private static boolean isAbbreviation(CharSequence text, int dot, int after)
+    {
+        // The word before the dot: letters and any dots between them
+        int word = dot;
+        boolean dotted = false;
+        while (word > 0) {
+            char c = text.charAt(word - 1);
+            if (c == '.') {
+                dotted = true;
+            } else if (!Character.isLetter(c)) {
+                break;
+            }
+            word--;
+        }
+        int length = dot - word;
+        if (length == 0) {
+            return false;
+        }
+        if (length == 1 && Character.isUpperCase(text.charAt(word))) {
+            return true;
+        }
+        if (!dotted && length > 1) {
+            if (length <= LONGEST && matches(TITLES, text, word, dot)) {
+                return true;
+            }
+            if (length > LONGEST || !matches(ENDINGS, text, word, dot)) {
+                return false;
+            }
+        }
+        // A lowercase letter, a dotted abbreviation or one of ENDINGS
+        int next = skipWhitespace(text, after);
+        while (next < text.length() && isOpener(text.charAt(next))) {
+            next++;
+        }
+        return next < text.length() && !Character.isUpperCase(text.charAt(next));
+    }
+
+    // Whether text[start, end) is one of words, ignoring case
+    private static boolean matches(String[] words, CharSequence text, int start, int end)
+    {
+        for (String word : words) {
+            if (word.length() != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < word.length() && Character.toLowerCase(text.charAt(start + i)) == word.charAt(i)) {
+                i++;
+            }
+            if (i == word.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(CharSequence text, int i)
+    {
+        while (i < text.length() && isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // Chars that end a sentence
+    public static boolean isTerminator(char c)
+    {
+        return c == '.' || c == '?' || c == '!';
+    }
+
+    private static boolean isCloser(char c)
+    {
+        return c == '"' || c == '\'' || c == ')' || c == ']' || c == '}';
+    }
+
+    private static boolean isOpener(char c)
+    {
+        return c == '"' || c == '\'' || c == '(' || c == '[' || c == '{';
+    }
+
+    // \s: [ \t\n\x0B\f\r]
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.xml.stream.*;
+
+/*
+ * Pull-parser alternative to NgramParser. Instead of building a DOM for the
+ * whole file, sentences are read from each <DOC><TEXT> as they are needed, so
+ * only one paragraph is held in memory at a time. Every pass re-reads the
+ * file from the start; cursor(InputStream, boolean) reads the same layout
+ * from any stream (Corpus uses it for gzipped and many-file corpora).
+ *
+ * A cursor's sentences are views of the paragraph they were found in (see
+ * CharSpan), lowercased in place unless useUpperCase, so a model encodes
+ * them without a String being made for each one; iterator() copies them.
+ */
+public class StreamingNgramParser extends Samples
+{
+    public String filename;
+    public boolean useUpperCase;
+
+    public static void main(String[] args)
+    {
+        StreamingNgramParser p = new StreamingNgramParser("data/fbistest.xml");
+        Iterator<String> i = p.iterator();
+        System.out.println(i.next());
+        System.out.println();
+        System.out.println(i.next());
+    }
+
+    public StreamingNgramParser(String filename)
+    {
+        this(filename, false);
+    }
+
+    public StreamingNgramParser(String filename, boolean useUpperCase)
+    {
+        this.filename = filename;
+        this.useUpperCase = useUpperCase;
+    }
+
+    public SampleSource.Cursor cursor()
+    {
+        try {
+            return new SentenceCursor(new BufferedInputStream(new FileInputStream(filename)), useUpperCase);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new SentenceCursor(null, useUpperCase);
+        }
+    }
+
+    // The sentences of the DOC/TEXT XML read from in, which is closed at the end
+    public static SampleSource.Cursor cursor(InputStream in, boolean useUpperCase)
+    {
+        return new SentenceCursor(in, useUpperCase);
+    }
+
+    private static class SentenceCursor implements SampleSource.Cursor, SentenceSegmenter.Sink
+    {
+        private InputStream in;
+        private XMLStreamReader reader;
+        private boolean useUpperCase;
+        private StringBuilder text = new StringBuilder(); // The current paragraph
+        private int[] bounds = new int[64]; // Start and end of each of its sentences
+        private int sentences; // Sentences of the paragraph found so far
+        private int current = -1; // The sentence sample() is
+        private CharSpan sample = new CharSpan();
+
+        public SentenceCursor(InputStream in, boolean useUpperCase)
+        {
+            this.in = in;
+            this.useUpperCase = useUpperCase;
+            if (in == null) {
+                return;
+            }
+            try {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+                factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+                reader = factory.createXMLStreamReader(in);
+            } catch (Exception e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        public boolean next()
+        {
+            current++;
+            while (current >= sentences) {
+                if (reader == null) {
+                    return false;
+                }
+                readNextText();
+                current = 0;
+            }
+            sample.set(text, bounds[2*current], bounds[2*current+1]);
+            return true;
+        }
+
+        public CharSequence sample()
+        {
+            return sample;
+        }
+
+        public long times()
+        {
+            return 1;
+        }
+
+        // Called by SentenceSegmenter for each sentence of the paragraph
+        public void sentence(CharSequence text, int start, int end)
+        {
+            if (2*sentences == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[2*sentences] = start;
+            bounds[2*sentences+1] = end;
+            sentences++;
+        }
+
+        // Advance to the first TEXT of the next DOC and find its sentences
+        private void readNextText()
+        {
+            try {
+                boolean inDoc = false; // true once inside a DOC whose TEXT hasn't been read yet
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = reader.getLocalName();
+                    if (name.equals("DOC")) {
+                        inDoc = true;
+                    } else if (inDoc && name.equals("TEXT")) {
+                        readText();
+                        sentences = 0;
+                        SentenceSegmenter.segment(text, this);
+                        if (!useUpperCase) {
+                            // After segmenting, which looks at capitals
+                            for (int i = 0; i < text.length(); i++) {
+                                text.setCharAt(i, Character.toLowerCase(text.charAt(i)));
+                            }
+                        }
+                        return;
+                    }
+                }
+            } catch (XMLStreamException e) {
+                e.printStackTrace();
+            }
+            sentences = 0;
+            close();
+        }
+
+        // Collect the character data directly inside the current TEXT element
+        private void readText() throws XMLStreamException
+        {
+            text.setLength(0);
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    text.setLength(0);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS ||
+                                          event == XMLStreamConstants.CDATA)) {
+                    text.append(reader.getText());
+                }
+            }
+        }
+
+        private void close()
+        {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            reader = null;
+            in = null;
+        }
+    }
+}
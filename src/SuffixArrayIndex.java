@@ -0,0 +1,355 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * N-gram counts of every order up to maxOrder from one index over the
+ * corpus, instead of one trained model per order.
+ *
+ * The corpus is kept as one int array of word ids with START before every
+ * sentence and after the last, so an n-gram padded with START, as Ngram
+ * counts it, is found in the text with its run of STARTs cut to one. The
+ * suffix array lists the positions of the text sorted by the words that
+ * follow them, so all occurrences of any k-gram are next to each other and
+ * counting one is two binary searches. Only the first maxOrder words of each
+ * suffix are sorted on (a radix sort, one counting pass per word), which is
+ * all a query up to maxOrder needs. lcp[i] is how many leading words suffix
+ * i shares with suffix i-1, capped at maxOrder so it fits in a byte; runs of
+ * lcp >= k mark the distinct k-grams, so listing them (and so the
+ * count-of-counts) is one scan.
+ *
+ * Memory is 9 bytes per word of the corpus (text, suffix array and lcp),
+ * whatever the order.
+ */
+public class SuffixArrayIndex
+{
+    public static final int MAX_ORDER = Byte.MAX_VALUE; // Largest maxOrder lcp can hold
+    public static final int START = Vocabulary.START;
+
+    public final int maxOrder; // Longest n-gram that can be counted
+    public final Vocabulary vocab; // Maps words to the ids the text is made of
+    public double numTrainingNgrams; // Number of words in the corpus (n-grams of any order)
+    public double vocabSize; // Size of the vocabulary for add-one smoothing
+
+    private int[] text; // The corpus, sentences separated by START
+    private int length; // Number of ids in text
+    private int[] suffixes; // Positions of the text in sorted order
+    private byte[] lcp; // Leading words shared with the previous suffix, at most maxOrder
+    private int startSuffixes; // Suffixes starting with START come first; this is how many
+
+    public static void main(String[] args)
+    {
+        if (args.length != 2) {
+            System.out.println("You must supply 2 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) the highest order to count, an integer n > 0");
+            System.exit(1);
+        }
+        int maxOrder = Integer.parseInt(args[1]);
+        SuffixArrayIndex index = new SuffixArrayIndex(Corpus.openOrExit(args[0]), new Vocabulary(), maxOrder);
+        System.out.println("Indexed " + (long) index.numTrainingNgrams + " words in " + index.bytes() + " bytes");
+        for (int k = 1; k <= maxOrder; k++) {
+            HashMap<Double, Double> numberWithCount = index.countOfCounts(k);
+            double distinct = 0;
+            for (double number : numberWithCount.values()) {
+                distinct += number;
+            }
+            Double singletons = numberWithCount.get(1.0);
+            System.out.println("  " + k + "-grams: " + (long) distinct + " distinct, " +
+                               (long) (singletons == null ? 0.0 : singletons) + " seen once");
+        }
+    }
+
+    public SuffixArrayIndex(Iterable<String> samples, Vocabulary vocab, int maxOrder)
+    {
+        if (maxOrder < 1 || maxOrder > MAX_ORDER) {
+            throw new IllegalArgumentException("The highest order must be from 1 to " + MAX_ORDER);
+        }
+        this.maxOrder = maxOrder;
+        this.vocab = vocab;
+
+        text = new int[1024];
+        SampleSource.Cursor cursor = Samples.cursor(samples);
+        while (cursor.next()) {
+            int[] words = vocab.encode(cursor.sample());
+            // Every occurrence goes into the text, so its suffixes are counted
+            for (long i = 0; i < cursor.times(); i++) {
+                if (length + words.length + 2 > text.length) {
+                    text = Arrays.copyOf(text, Math.max(text.length * 2, length + words.length + 2));
+                }
+                text[length++] = START;
+                System.arraycopy(words, 0, text, length, words.length);
+                length += words.length;
+                numTrainingNgrams += words.length;
+            }
+        }
+        text[length++] = START;
+        text = Arrays.copyOf(text, length);
+        vocabSize = vocab.size() - 1; // everything but START
+
+        sortSuffixes();
+        makeLcp();
+        startSuffixes = upperBound(new int[] {START}, 1);
+    }
+
+    // LSD radix sort of the positions on their first maxOrder words, the end
+    // of the text sorting before every word
+    private void sortSuffixes()
+    {
+        int buckets = vocab.size() + 1; // 0 for past the end, id+1 for each word
+        suffixes = new int[length];
+        int[] sorted = new int[length];
+        int[] starts = new int[buckets + 1];
+        for (int i = 0; i < length; i++) {
+            suffixes[i] = i;
+        }
+        for (int word = maxOrder - 1; word >= 0; word--) {
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < length; i++) {
+                starts[bucket(i + word) + 1]++;
+            }
+            for (int b = 0; b < buckets; b++) {
+                starts[b+1] += starts[b];
+            }
+            for (int suffix : suffixes) {
+                sorted[starts[bucket(suffix + word)]++] = suffix;
+            }
+            int[] swap = suffixes;
+            suffixes = sorted;
+            sorted = swap;
+        }
+    }
+
+    private int bucket(int position)
+    {
+        return position < length ? text[position] + 1 : 0;
+    }
+
+    private void makeLcp()
+    {
+        lcp = new byte[length];
+        for (int i = 1; i < length; i++) {
+            int a = suffixes[i-1];
+            int b = suffixes[i];
+            int shared = 0;
+            while (shared < maxOrder && b + shared < length && a + shared < length && text[a + shared] == text[b + shared]) {
+                shared++;
+            }
+            lcp[i] = (byte) shared;
+        }
+    }
+
+    // Compares the suffix at position with gram[0, k) (0 if the suffix starts with it)
+    private int compare(int position, int[] gram, int k)
+    {
+        for (int i = 0; i < k; i++) {
+            if (position + i >= length) {
+                return -1;
+            }
+            int word = text[position + i];
+            if (word != gram[i]) {
+                return word < gram[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    // Index of the first suffix not before gram[0, k)
+    private int lowerBound(int[] gram, int k)
+    {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(suffixes[middle], gram, k) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Index of the first suffix after every one starting with gram[0, k)
+    private int upperBound(int[] gram, int k)
+    {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(suffixes[middle], gram, k) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Occurrences of gram[0, k) in the text
+    private int occurrences(int[] gram, int k)
+    {
+        return upperBound(gram, k) - lowerBound(gram, k);
+    }
+
+    // gram[0, k) as it appears in the text: leading STARTs cut to one. Null
+    // if it can't be in any sentence (an unknown word, or a START after a word)
+    private int[] inText(int[] gram, int k)
+    {
+        if (k > maxOrder) {
+            throw new IllegalArgumentException("This index only counts up to " + maxOrder + "-grams");
+        }
+        int first = 0;
+        while (first < k - 1 && gram[first] == START && gram[first+1] == START) {
+            first++;
+        }
+        for (int i = first; i < k; i++) {
+            if (gram[i] < 0 || (i > first && gram[i] == START)) {
+                return null;
+            }
+        }
+        return Arrays.copyOfRange(gram, first, k);
+    }
+
+    // Count of an n-gram of any order up to maxOrder, as Ngram of that order counts it
+    public double count(int[] gram)
+    {
+        int[] found = inText(gram, gram.length);
+        if (found == null || found[found.length-1] == START) {
+            // Every n-gram ends in a word
+            return 0.0;
+        }
+        return occurrences(found, found.length);
+    }
+
+    // Count of the first words of gram (all but the last) as a context: the
+    // number of times a word follows them
+    public double level1Count(int[] gram)
+    {
+        int k = gram.length - 1;
+        if (k == 0) {
+            return numTrainingNgrams;
+        }
+        int[] found = inText(gram, k);
+        if (found == null) {
+            return 0.0;
+        }
+        // Every occurrence but those at the end of a sentence (followed by
+        // START), and the final START, which nothing follows
+        int[] followedByStart = Arrays.copyOf(found, found.length + 1);
+        followedByStart[found.length] = START;
+        int atEnd = found.length == 1 && found[0] == START ? 1 : 0;
+        return occurrences(found, found.length) - occurrences(followedByStart, followedByStart.length) - atEnd;
+    }
+
+    public double unsmoothedProbability(String[] words)
+    {
+        return unsmoothedProbability(vocab.lookupAll(words));
+    }
+
+    public double unsmoothedProbability(int[] words)
+    {
+        double count = count(words);
+        if (count > 0) {
+            return count / level1Count(words);
+        }
+        return 0.0;
+    }
+
+    public double addOneSmoothedProbability(String[] words)
+    {
+        return addOneSmoothedProbability(vocab.lookupAll(words));
+    }
+
+    public double addOneSmoothedProbability(int[] words)
+    {
+        // (count(Wn) + 1) / (count(Wn-1) + V)
+        return (count(words) + 1.0) / (level1Count(words) + vocabSize);
+    }
+
+    // Calls visitor once for every distinct k-gram (k <= maxOrder), as Ngram
+    // of order k would hold them
+    public void forEachNgram(int k, NgramStore.Visitor visitor)
+    {
+        if (k < 1 || k > maxOrder) {
+            throw new IllegalArgumentException("This index only counts 1- to " + maxOrder + "-grams");
+        }
+        int[] ngram = new int[k];
+        // k-grams padded with START are the text's m-grams made of a START
+        // and the first m-1 words of a sentence, for every m <= k
+        for (int m = 2; m <= k; m++) {
+            forEachGram(m, 0, startSuffixes, ngram, visitor);
+        }
+        forEachGram(k, startSuffixes, length, ngram, visitor);
+    }
+
+    // Visits every distinct m-gram of the text that starts one of
+    // suffixes[from, to) and has no START after its first word, written at
+    // the end of ngram after as many STARTs as it takes
+    private void forEachGram(int m, int from, int to, int[] ngram, NgramStore.Visitor visitor)
+    {
+        int k = ngram.length;
+        Arrays.fill(ngram, 0, k - m, START);
+        int i = from;
+        while (i < to) {
+            // Suffixes sharing their first m words are next to each other
+            int j = i + 1;
+            while (j < to && lcp[j] >= m) {
+                j++;
+            }
+            if (isGram(suffixes[i], m)) {
+                System.arraycopy(text, suffixes[i], ngram, k - m, m);
+                visitor.visit(ngram, j - i);
+            }
+            i = j;
+        }
+    }
+
+    private boolean isGram(int position, int m)
+    {
+        if (position + m > length) {
+            return false;
+        }
+        for (int i = 1; i < m; i++) {
+            if (text[position + i] == START) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The number of k-grams that occur x times
+    public HashMap<Double, Double> countOfCounts(int k)
+    {
+        final HashMap<Double, Double> numberWithCount = new HashMap<Double, Double>();
+        forEachNgram(k, new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                Double number = numberWithCount.get(count);
+                numberWithCount.put(count, number == null ? 1.0 : number + 1.0);
+            }
+        });
+        return numberWithCount;
+    }
+
+    // An Ngram of order k (k <= maxOrder) with this index's counts, for the
+    // smoothing and generation only a model has
+    public Ngram toNgram(int k, NgramStore.Type storeType)
+    {
+        final Ngram model = new Ngram(null, k, vocab, storeType);
+        forEachNgram(k, new NgramStore.Visitor() {
+            public void visit(int[] ngram, double count)
+            {
+                model.ngc.insert(ngram, count);
+            }
+        });
+        model.numTrainingNgrams = numTrainingNgrams;
+        model.numberOfNgramsWithCount = countOfCounts(k);
+        model.vocabSize = vocabSize;
+        return model;
+    }
+
+    // Bytes held by the text, suffix array and lcp
+    public long bytes()
+    {
+        return 4L * text.length + 4L * suffixes.length + lcp.length;
+    }
+}
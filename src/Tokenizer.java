@@ -0,0 +1,15 @@
+/*
+ * Splits a sample into tokens. Tokens are reported as [start, end) offsets
+ * into the text, so a caller can look them up (see Vocabulary) without a
+ * String being made for each one.
+ */
+public interface Tokenizer
+{
+    // Receives each token in order; text is the sample being tokenized
+    public interface Sink
+    {
+        public void token(CharSequence text, int start, int end);
+    }
+
+    public void tokenize(CharSequence text, Sink sink);
+}
@@ -1,206 +1,368 @@
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Stack;
+import java.util.SplittableRandom;
 
-public class Unigram
+public class Unigram implements ParallelTrainer.Shard
 {
-    public Set<String> samples;
-    public HashMap<String, Double> counts;
+    public Iterable<String> samples;
+    public Vocabulary vocab; // Maps words to the ids used everywhere else
+    public double[] counts; // counts[id] is the count for word id
     public double totalCount;
-    public final String START = ":S";
+    public final int START = Vocabulary.START;
     
     // For add-one smoothing
-    public Set<String> wordSet; // Used to find the vocabulary
     public double vocabSize; // Size of the vocabulary
     
     // For Good Turing Smoothing
     public double numTrainingUnigrams; // The size of the training set (# non-distinct words)
     public HashMap<Double, Double> numberOfUnigramsWithCount; // The number of unigrams that occur x times
+    public GoodTuringTable goodTuringTable; // Good-Turing counts by raw count, made by freeze()
+    public double totalGTCount; // Sum of the good turing counts of all words
     public boolean goodTuringCountsAvailable = false; // True when good turing counts are available
+    public AliasSampler sampler; // Draws words in proportion to their counts, made by freeze()
+    public ModelMetrics metrics = ModelMetrics.NONE; // Where training metrics go (see setMetrics)
     
     public static void main(String[] args)
     {
 		if (args.length != 2) {
-            System.out.println("You must supply 2 arguments:\n(1) Training file\n" +
-                               "(2) Test file");
+            System.out.println("You must supply 2 arguments:\n(1) Training file, directory or glob\n" +
+                               "(2) Test file, directory or glob");
             System.exit(1);
         }
         
-		NgramParser p = new NgramParser(args[0], true);
-        HashSet<String> set = p.parse();
+		Corpus set = Corpus.openOrExit(args[0]);
         
         Unigram u = new Unigram(set);
         u.train();
+        u.freeze();
         
         System.out.println("Done training.");
 
         //System.out.println(u.getSentence());
         
-        NgramParser test = new NgramParser(args[1], true);
-        HashSet<String> testset = test.parse();
-        System.out.println("Perplexity of the test set: " + u.perplexity(testset));
+        Corpus testset = Corpus.openOrExit(args[1]);
+        System.out.println(u.evaluate(testset));
     }
     
-    public Unigram(Set<String> samples)
+    public Unigram(Iterable<String> samples)
+    {
+        this(samples, new Vocabulary());
+    }
+    
+    public Unigram(Iterable<String> samples, Vocabulary vocab)
     {
         this.samples = samples;
-        this.counts = new HashMap<String, Double>();
+        this.vocab = vocab;
+        this.counts = new double[vocab.size()];
         this.totalCount = 0;
         
-        this.wordSet = new HashSet<String>();
-        
         this.numberOfUnigramsWithCount = new HashMap<Double, Double>();
     }
     
     public void train()
     {
-        // Regexp to match words (starting with optional apos) or any punctuation (with probably extra escaping)
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
-        for (String sample : samples) {
-            Matcher matcher = pattern.matcher(sample);
-            while (matcher.find()) {
-                String match = matcher.group();
-                
-                wordSet.add(match);
-                
-                double count = 0;
-                if (counts.containsKey(match)) {
-                    count = counts.get(match);
-                    numberOfUnigramsWithCount.put(count, numberOfUnigramsWithCount.get(count)-1);
-                }
-                counts.put(match, count+1);
-                if (!numberOfUnigramsWithCount.containsKey(count+1)) {
-                    numberOfUnigramsWithCount.put(count+1, 1.0);
-                } else {
-                    numberOfUnigramsWithCount.put(count+1, numberOfUnigramsWithCount.get(count+1)+1);
-                }
-                
-                totalCount++;
-                numTrainingUnigrams++;
-            }
+        long start = metrics.start();
+        double before = numTrainingUnigrams;
+        SampleSource.Cursor cursor = Samples.cursor(samples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
         }
         
-        vocabSize = wordSet.size();
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingUnigrams - before), start);
     }
     
-    public double unsmoothedProbability(String word)
+    // Reports training metrics to metrics, named name.* (see ModelMetrics),
+    // with gauges for the model's size (as of the last freeze()). Queries are an array read, cheaper
+    // than reading the clock, so they aren't timed
+    public void setMetrics(Metrics metrics, String name)
+    {
+        this.metrics = new ModelMetrics(metrics, name);
+        if (goodTuringCountsAvailable) {
+            this.metrics.size("bytes", bytes());
+        }
+        this.metrics.gauge("vocab.size", new Metrics.Gauge() {
+            public double value() { return vocab.size(); }
+        });
+    }
+    
+    // Rough heap bytes held by the counts and sampler (see ModelMetrics.arrayBytes)
+    public long bytes()
+    {
+        long bytes = ModelMetrics.arrayBytes(counts.length, 8);
+        if (sampler != null) {
+            bytes += sampler.bytes();
+        }
+        return bytes;
+    }
+    
+    // Adds newSamples to an already trained model. If it was frozen, the
+    // smoothing and sampler are brought up to date, so it can be queried
+    // again at once
+    public void update(Iterable<String> newSamples)
+    {
+        long start = metrics.start();
+        double before = numTrainingUnigrams;
+        SampleSource.Cursor cursor = Samples.cursor(newSamples);
+        while (cursor.next()) {
+            countSample(cursor.sample(), cursor.times(), true);
+        }
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingUnigrams - before), start);
+        if (goodTuringCountsAvailable) {
+            freeze();
+        }
+    }
+    
+    // Trains on samples with one shard per thread, then merges the shards
+    public void trainParallel(int threads)
+    {
+        long start = metrics.start();
+        double before = numTrainingUnigrams;
+        Unigram[] shards = new Unigram[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Unigram(null, new Vocabulary(vocab.tokenizer));
+        }
+        ParallelTrainer.run(samples, shards);
+        
+        for (Unigram shard : shards) {
+            merge(shard);
+        }
+        // Count-of-counts are only meaningful once every shard's counts are in
+        rebuildCountOfCounts();
+        
+        vocabSize = vocab.size() - 1; // everything but START
+        metrics.trained((long) (numTrainingUnigrams - before), start);
+    }
+    
+    // Counts sample without maintaining numberOfUnigramsWithCount (see trainParallel)
+    public void countSample(String sample)
+    {
+        countSample(sample, 1, false);
+    }
+    
+    // Counts times occurrences of sample (see SampleSource)
+    private void countSample(CharSequence sample, long times, boolean updateCountOfCounts)
+    {
+        for (int match : vocab.encode(sample)) {
+            ensureCapacity(match);
+            
+            double count = counts[match];
+            counts[match] = count+times;
+            totalCount += times;
+            numTrainingUnigrams += times;
+            if (!updateCountOfCounts) {
+                continue;
+            }
+            
+            if (count > 0) {
+                numberOfUnigramsWithCount.put(count, numberOfUnigramsWithCount.get(count)-1);
+            }
+            if (!numberOfUnigramsWithCount.containsKey(count+times)) {
+                numberOfUnigramsWithCount.put(count+times, 1.0);
+            } else {
+                numberOfUnigramsWithCount.put(count+times, numberOfUnigramsWithCount.get(count+times)+1);
+            }
+        }
+    }
+    
+    // Adds all of shard's counts into this model, translating its word ids to ours
+    public void merge(Unigram shard)
+    {
+        int[] ids = shard.vocab.idsIn(vocab);
+        for (int word = 0; word < ids.length && word < shard.counts.length; word++) {
+            if (shard.counts[word] > 0) {
+                ensureCapacity(ids[word]);
+                counts[ids[word]] += shard.counts[word];
+            }
+        }
+        totalCount += shard.totalCount;
+        numTrainingUnigrams += shard.numTrainingUnigrams;
+    }
+    
+    // Recount numberOfUnigramsWithCount from scratch from counts
+    public void rebuildCountOfCounts()
+    {
+        numberOfUnigramsWithCount.clear();
+        for (int word = 0; word < counts.length; word++) {
+            double count = counts[word];
+            if (count > 0) {
+                Double number = numberOfUnigramsWithCount.get(count);
+                numberOfUnigramsWithCount.put(count, number == null ? 1.0 : number + 1.0);
+            }
+        }
+    }
+    
+    // Grow counts so that it can be indexed by id
+    private void ensureCapacity(int id)
     {
-        if (counts.containsKey(word)) {
-            return counts.get(word) / totalCount;
-        } else {
-            return 0.0;
+        if (id >= counts.length) {
+            double[] bigger = new double[Math.max(id + 1, counts.length * 2)];
+            System.arraycopy(counts, 0, bigger, 0, counts.length);
+            counts = bigger;
         }
     }
     
+    public double unsmoothedProbability(String word)
+    {
+        return unsmoothedProbability(vocab.lookup(word));
+    }
+    
+    public double unsmoothedProbability(int word)
+    {
+        return count(word) / totalCount;
+    }
+    
     public double count(String word)
     {
-        if (counts.containsKey(word)) {
-            return counts.get(word);
+        return count(vocab.lookup(word));
+    }
+    
+    public double count(int word)
+    {
+        if (word >= 0 && word < counts.length) {
+            return counts[word];
         }
         return 0.0;
     }
     
     public double addOneSmoothedProbability(String word)
+    {
+        return addOneSmoothedProbability(vocab.lookup(word));
+    }
+    
+    public double addOneSmoothedProbability(int word)
     {
         return (count(word) + 1.0) / (totalCount + vocabSize);
     }
     
     public double goodTuringSmoothedProbability(String word)
+    {
+        return goodTuringSmoothedProbability(vocab.lookup(word));
+    }
+    
+    public double goodTuringSmoothedProbability(int word)
     {
         if (!goodTuringCountsAvailable) {
-            System.out.println("Making good turing counts...");
-            makeGoodTuringCounts();
-            System.out.println("Done making good turing counts.");
+            throw new IllegalStateException("Call freeze() after training to make good turing counts");
         }
         
         // If this unigram has occurred, return good turing probability
-        double gtcount = count(word);
+        double gtcount = goodTuringTable.count(count(word));
         if (gtcount > 0.0) {
-            return gtcount / totalCount;
+            return gtcount / totalGTCount;
         }
         // Otherwise, return N1/N as per book (page 101?)
-        return numberOfUnigramsWithCount.get(1.0) / numTrainingUnigrams;
+        return goodTuringTable.unseenProbability;
+    }
+    
+    // Call once training is done: works out everything the query methods
+    // need up front, so that no query ever changes the model
+    public void freeze()
+    {
+        makeGoodTuringCounts();
+        makeSampler();
+        metrics.size("bytes", bytes());
+    }
+    
+    public void makeSampler()
+    {
+        int size = 0;
+        for (int word = 0; word < counts.length; word++) {
+            if (counts[word] > 0) {
+                size++;
+            }
+        }
+        int[] words = new int[size];
+        double[] weights = new double[size];
+        int i = 0;
+        for (int word = 0; word < counts.length; word++) {
+            if (counts[word] > 0) {
+                words[i] = word;
+                weights[i++] = counts[word];
+            }
+        }
+        sampler = new AliasSampler(words, weights);
     }
     
     public void makeGoodTuringCounts()
     {
-        // Generate good turing counts
-        totalCount = 0;
-        for (String word : counts.keySet()) {
-            double count = counts.get(word);
-            if (!numberOfUnigramsWithCount.containsKey(count+1)) {
-                numberOfUnigramsWithCount.put(count+1, 0.0);
+        // Generate good turing counts (the raw counts are left alone)
+        goodTuringTable = new GoodTuringTable(numberOfUnigramsWithCount, numTrainingUnigrams);
+        totalGTCount = 0;
+        for (int word = 0; word < counts.length; word++) {
+            if (counts[word] > 0.0) {
+                totalGTCount += goodTuringTable.count(counts[word]);
             }
-            // c* = (c+1) * N(c+1) / N(c)
-            double newCount = (count + 1)*(numberOfUnigramsWithCount.get(count+1.0))/(numberOfUnigramsWithCount.get(count));
-            counts.put(word, newCount);
-            totalCount += newCount;
         }
         goodTuringCountsAvailable = true;
     }
     
-    public void showCounts()
+    // Writes the model in the binary format read by BinaryModel
+    public void save(String filename) throws IOException
     {
-        for (String key : counts.keySet()) {
-            System.out.println(key + ": " + counts.get(key));
+        NgramSorter sorter = new NgramSorter(1);
+        int[] unigram = new int[1];
+        for (int word = 0; word < counts.length; word++) {
+            if (counts[word] > 0) {
+                unigram[0] = word;
+                sorter.add(unigram, counts[word]);
+            }
         }
+        ModelWriter writer = new ModelWriter(filename, 1, vocab, numberOfUnigramsWithCount,
+                                             numTrainingUnigrams, vocabSize);
+        sorter.writeTo(writer);
+        writer.close();
     }
-
-    public String getSentence() {
-        String sentence = "";
-        String currentWord = START;
-        Set<String> keySet = counts.keySet();
-        //creates a sentence until a period is found
-        //(400 is jic it doesn't find a period)
-        while (!currentWord.equals(".") && sentence.length() <= 400) {
-            // rand is like a random dart thrown onto a dart board
-            // multiplied by totalCount for precision (since P(word) is small)
-            double rand = Math.random() * totalCount;
-            Iterator<String> i = keySet.iterator();
-            //looking at all the words to see where the dart lands
-            while (i.hasNext() && rand >= 0) {
-                currentWord = i.next();
-                rand -= counts.get(currentWord);
+    
+    public void showCounts()
+    {
+        for (int word = 0; word < counts.length; word++) {
+            if (counts[word] > 0) {
+                System.out.println(vocab.word(word) + ": " + counts[word]);
             }
-            sentence += currentWord + " ";
         }
-        return sentence;
     }
 
-    public double perplexity(Set<String> testSamples) {
-        float product = 1;
-        int wordCount = 0;
-        Stack<Double> products = new Stack<Double>();
-        String regexp = "('?\\w+|\\p{Punct})";
-        Pattern pattern = Pattern.compile(regexp);
+    public String getSentence() {
+        return getSentence(new SplittableRandom());
+    }
 
-        // counting number of words in test set
-        for (String sample : testSamples) {
-            Matcher matcher = pattern.matcher(sample);
-            while (matcher.find()) {
-                String match = matcher.group();
-                /*if (unsmoothedProbability(match) > 0) {
-                    products.push(unsmoothedProbability(match));
-                    wordCount++;
-                }*/
-                products.push(goodTuringSmoothedProbability(match));
-                wordCount++;
-            }
+    // Generates a sentence; the same seeded random gives the same sentences
+    public String getSentence(SplittableRandom random) {
+        if (sampler == null) {
+            throw new IllegalStateException("Call freeze() after training to make the sampler");
         }
+        if (sampler.size() == 0) {
+            return ""; // Trained on nothing, so there are no words to draw
+        }
+        StringBuilder sentence = new StringBuilder();
+        int currentWord = START;
+        //creates a sentence until a period, ? or ! is found
+        //(400 is jic it doesn't find one)
+        while (!vocab.endsSentence(currentWord) && sentence.length() <= 400) {
+            currentWord = sampler.sample(random);
+            sentence.append(vocab.word(currentWord)).append(' ');
+        }
+        return sentence.toString();
+    }
 
-        // computing the necessary exponent
-        double power = 1.0 / wordCount;
+    public double perplexity(Iterable<String> testSamples) {
+        return evaluate(testSamples).perplexity();
+    }
 
-        // computing perplexity based on probabilities
-        while (!products.empty()) {
-            product *= Math.pow(products.pop(), power);
+    // Scores every word of the test set with good turing probabilities
+    public PerplexityEvaluator evaluate(Iterable<String> testSamples) {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator();
+        SampleSource.Cursor cursor = Samples.cursor(testSamples);
+        while (cursor.next()) {
+            for (int match : vocab.lookupAll(cursor.sample())) {
+                evaluator.addLogProbability(Math.log(goodTuringSmoothedProbability(match)),
+                                            match == Vocabulary.UNKNOWN, cursor.times());
+            }
         }
-        return 1 / product;
+        return evaluator;
     }
 
 }
\ No newline at end of file
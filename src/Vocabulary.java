@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Maps each token to a dense int id (and back) so the models can count and
+ * look up int[] sequences instead of re-hashing Strings at every stage.
+ * Id 0 is always the sentence start symbol.
+ *
+ * Words are found through an open-addressing table of ids hashed on their
+ * chars, so a token can be looked up straight from a range of the sample it
+ * came from; a String is only made when a new word is added.
+ */
+public class Vocabulary
+{
+    public static final String START_SYMBOL = ":S"; // The sentence start symbol
+    public static final int START = 0; // Id of the sentence start symbol
+    public static final int UNKNOWN = -1; // Id returned for words that were never added
+    private static final int EMPTY = -1; // Unused table slot
+
+    public final Tokenizer tokenizer; // Splits samples into words
+    private int[] table; // Word ids by hash of their chars, at most half full
+    private ArrayList<String> words; // id => word
+
+    public Vocabulary()
+    {
+        this(new CharTokenizer());
+    }
+
+    public Vocabulary(Tokenizer tokenizer)
+    {
+        this.tokenizer = tokenizer;
+        this.table = new int[1024];
+        this.words = new ArrayList<String>();
+        Arrays.fill(table, EMPTY);
+        id(START_SYMBOL);
+    }
+
+    // Hash of text[start, end) (also used for the vocabulary table in model files)
+    static int hash(CharSequence text, int start, int end)
+    {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31*h + text.charAt(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Returns the id of word, adding it to the vocabulary if it is new
+    public int id(String word)
+    {
+        return id(word, 0, word.length());
+    }
+
+    // Returns the id of the word text[start, end), adding it if it is new
+    public int id(CharSequence text, int start, int end)
+    {
+        int slot = slot(text, start, end);
+        if (table[slot] != EMPTY) {
+            return table[slot];
+        }
+        int id = words.size();
+        words.add(text.subSequence(start, end).toString());
+        table[slot] = id;
+        if (words.size() * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    // Returns the id of word, or UNKNOWN if it was never added
+    public int lookup(String word)
+    {
+        return lookup(word, 0, word.length());
+    }
+
+    // Returns the id of the word text[start, end), or UNKNOWN if it was never added
+    public int lookup(CharSequence text, int start, int end)
+    {
+        int id = table[slot(text, start, end)];
+        return id == EMPTY ? UNKNOWN : id;
+    }
+
+    // The slot holding the word text[start, end), or the empty slot it would go in
+    private int slot(CharSequence text, int start, int end)
+    {
+        int mask = table.length - 1;
+        for (int slot = hash(text, start, end) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot];
+            if (id == EMPTY || matches(words.get(id), text, start, end)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean matches(String word, CharSequence text, int start, int end)
+    {
+        if (word.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash()
+    {
+        table = new int[table.length * 2];
+        Arrays.fill(table, EMPTY);
+        int mask = table.length - 1;
+        for (int id = 0; id < words.size(); id++) {
+            String word = words.get(id);
+            int slot = hash(word, 0, word.length()) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    public String word(int id)
+    {
+        return words.get(id);
+    }
+
+    // Whether id is a word that ends a sentence: ".", "?" or "!" (see SentenceSegmenter)
+    public boolean endsSentence(int id)
+    {
+        if (id < 0 || id >= words.size()) {
+            return false;
+        }
+        String word = words.get(id);
+        return word.length() == 1 && SentenceSegmenter.isTerminator(word.charAt(0));
+    }
+
+    // Number of ids handed out, including START
+    public int size()
+    {
+        return words.size();
+    }
+
+    // Returns, for each id in this vocabulary, the id of the same word in
+    // target (adding words target doesn't have yet)
+    public int[] idsIn(Vocabulary target)
+    {
+        int[] ids = new int[size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = target.id(word(id));
+        }
+        return ids;
+    }
+
+    // Tokenizes sample and returns the ids of its words, adding new words.
+    // sample can be a view of a longer text (see CharSpan): its words are
+    // looked up straight from their chars
+    public int[] encode(CharSequence sample)
+    {
+        return encode(sample, true);
+    }
+
+    // Tokenizes sample and returns the ids of its words, using UNKNOWN for new words
+    public int[] lookupAll(CharSequence sample)
+    {
+        return encode(sample, false);
+    }
+
+    // Maps each word in a String[] n-gram to its id, using UNKNOWN for new words
+    public int[] lookupAll(String[] ngram)
+    {
+        int[] ids = new int[ngram.length];
+        for (int i = 0; i < ngram.length; i++) {
+            ids[i] = lookup(ngram[i]);
+        }
+        return ids;
+    }
+
+    private int[] encode(CharSequence sample, boolean add)
+    {
+        IdCollector ids = new IdCollector(add);
+        tokenizer.tokenize(sample, ids);
+        return Arrays.copyOf(ids.buffer, ids.length);
+    }
+
+    // Gathers the ids of the tokens it is sent
+    private class IdCollector implements Tokenizer.Sink
+    {
+        private final boolean add; // Whether to add new words or report them as UNKNOWN
+        private int[] buffer = new int[16];
+        private int length;
+
+        IdCollector(boolean add)
+        {
+            this.add = add;
+        }
+
+        public void token(CharSequence text, int start, int end)
+        {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, length * 2);
+            }
+            buffer[length++] = add ? id(text, start, end) : lookup(text, start, end);
+        }
+    }
+}